@@ -0,0 +1,135 @@
+// Portions copyright 2002, Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.developer4droid.trivialdrivesample.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding with {@link Base64}, standard and web safe, against
+ * {@link java.util.Base64} as a baseline. 256 bytes is about the size of an
+ * RSA-2048 signature; the larger sizes show throughput on bulk data.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Base64Benchmark {
+    @Param({ "16", "256", "4096", "65536" })
+    int size;
+
+    byte[] mData;
+    String mEncoded;
+    String mEncodedWebSafe;
+    byte[] mEncodedBytes;
+    ByteBuffer mEncodedDirect;
+    byte[] mDecoded;
+    ByteBuffer mDecodedDirect;
+
+    @Setup
+    public void setUp() {
+        mData = new byte[size];
+        new Random(42).nextBytes(mData);
+        mEncoded = Base64.encode(mData);
+        mEncodedWebSafe = Base64.encodeWebSafe(mData, true);
+        mEncodedBytes = mEncoded.getBytes();
+        mEncodedDirect = ByteBuffer.allocateDirect(mEncodedBytes.length);
+        mEncodedDirect.put(mEncodedBytes).flip();
+        mDecoded = new byte[Base64.maxDecodedLength(mEncodedBytes.length)];
+        mDecodedDirect = ByteBuffer.allocateDirect(mDecoded.length);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Base64.encode(mData);
+    }
+
+    @Benchmark
+    public String encodeWebSafe() {
+        return Base64.encodeWebSafe(mData, true);
+    }
+
+    @Benchmark
+    public String encodeJdk() {
+        return java.util.Base64.getEncoder().encodeToString(mData);
+    }
+
+    @Benchmark
+    public String encodeWebSafeJdk() {
+        return java.util.Base64.getUrlEncoder().encodeToString(mData);
+    }
+
+    @Benchmark
+    public byte[] decode() throws Base64DecoderException {
+        return Base64.decode(mEncoded);
+    }
+
+    @Benchmark
+    public byte[] decodeWebSafe() throws Base64DecoderException {
+        return Base64.decodeWebSafe(mEncodedWebSafe);
+    }
+
+    @Benchmark
+    public byte[] decodeBytes() throws Base64DecoderException {
+        return Base64.decode(mEncodedBytes);
+    }
+
+    @Benchmark
+    public int decodeInto() throws Base64DecoderException {
+        return Base64.decodeInto(mEncodedBytes, 0, mEncodedBytes.length, mDecoded, 0);
+    }
+
+    @Benchmark
+    public int decodeIntoDirect() throws Base64DecoderException {
+        mEncodedDirect.rewind();
+        mDecodedDirect.clear();
+        return Base64.decodeInto(mEncodedDirect, mDecodedDirect);
+    }
+
+    @Benchmark
+    public byte[] decodeJdk() {
+        return java.util.Base64.getDecoder().decode(mEncoded);
+    }
+
+    @Benchmark
+    public byte[] decodeWebSafeJdk() {
+        return java.util.Base64.getUrlDecoder().decode(mEncodedWebSafe);
+    }
+
+    @Benchmark
+    public byte[] decodeBytesJdk() {
+        return java.util.Base64.getDecoder().decode(mEncodedBytes);
+    }
+
+    @Benchmark
+    public int decodeIntoJdk() {
+        return java.util.Base64.getDecoder().decode(mEncodedBytes, mDecoded);
+    }
+}
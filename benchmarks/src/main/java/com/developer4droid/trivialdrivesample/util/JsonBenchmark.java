@@ -0,0 +1,102 @@
+// Portions copyright 2002, Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.developer4droid.trivialdrivesample.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the fields of a purchase and of SKU details with {@link JsonTokenizer},
+ * as Purchase and SkuDetails do, against building a {@link JSONObject} and
+ * reading them with optString/optLong, as they did before.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBenchmark {
+    static final String[] PURCHASE_NAMES = {
+        "orderId", "packageName", "productId", "purchaseTime",
+        "purchaseState", "developerPayload", "purchaseToken"
+    };
+
+    static final String[] SKU_DETAILS_NAMES = {
+        "productId", "type", "price", "title", "description",
+        "price_amount_micros", "price_currency_code"
+    };
+
+    static final String SKU_DETAILS = "{\"productId\":\"gold_monthly\",\"type\":\"subs\","
+            + "\"price\":\"$4.99\",\"price_amount_micros\":4990000,\"price_currency_code\":\"USD\","
+            + "\"title\":\"Gold (Trivial Drive)\",\"description\":\"Monthly gold membership \\u2013 "
+            + "unlimited gas\",\"subscriptionPeriod\":\"P1M\",\"freeTrialPeriod\":\"P7D\"}";
+
+    @Benchmark
+    public void purchaseTokenizer(Blackhole bh) throws JSONException {
+        JsonTokenizer reader = new JsonTokenizer(SecurityBenchmark.PURCHASE_DATA);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int field = reader.nextName(PURCHASE_NAMES);
+            if (field == 3 || field == 4) bh.consume(reader.nextLong());
+            else if (field >= 0) bh.consume(reader.nextString());
+            else reader.skipValue();
+        }
+        reader.endObject();
+    }
+
+    @Benchmark
+    public void purchaseJsonObject(Blackhole bh) throws JSONException {
+        JSONObject o = new JSONObject(SecurityBenchmark.PURCHASE_DATA);
+        for (int i = 0; i < PURCHASE_NAMES.length; ++i) {
+            if (i == 3 || i == 4) bh.consume(o.optLong(PURCHASE_NAMES[i]));
+            else bh.consume(o.optString(PURCHASE_NAMES[i]));
+        }
+    }
+
+    @Benchmark
+    public void skuDetailsTokenizer(Blackhole bh) throws JSONException {
+        JsonTokenizer reader = new JsonTokenizer(SKU_DETAILS);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int field = reader.nextName(SKU_DETAILS_NAMES);
+            if (field == 5) bh.consume(reader.nextLong());
+            else if (field >= 0) bh.consume(reader.nextString());
+            else reader.skipValue();
+        }
+        reader.endObject();
+    }
+
+    @Benchmark
+    public void skuDetailsJsonObject(Blackhole bh) throws JSONException {
+        JSONObject o = new JSONObject(SKU_DETAILS);
+        for (int i = 0; i < SKU_DETAILS_NAMES.length; ++i) {
+            if (i == 5) bh.consume(o.optLong(SKU_DETAILS_NAMES[i]));
+            else bh.consume(o.optString(SKU_DETAILS_NAMES[i]));
+        }
+    }
+}
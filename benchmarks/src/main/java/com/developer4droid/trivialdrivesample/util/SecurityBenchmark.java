@@ -0,0 +1,157 @@
+// Portions copyright 2002, Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.developer4droid.trivialdrivesample.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signature verification as done for each purchase returned by getPurchases().
+ * The baselines use java.security directly: {@link #verifyCachedKey} with a
+ * key and a {@link Signature} set up once, which is the least any verification
+ * can cost, and {@link #verifyJdk} with a key parsed on every call.
+ *
+ * The verification cache is turned off, so that these benchmarks measure the
+ * RSA work; {@link Cached} measures a repeat refresh, which the cache serves.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SecurityBenchmark {
+    // A purchase as returned by getPurchases()
+    static final String PURCHASE_DATA = "{\"orderId\":\"12999763169054705758.1371079406387615\","
+            + "\"packageName\":\"com.developer4droid.trivialdrivesample\",\"productId\":\"gas\","
+            + "\"purchaseTime\":1345678900000,\"purchaseState\":0,\"developerPayload\":\"\","
+            + "\"purchaseToken\":\"rojeslcdyyiapnqcynkjyyjh.AO-J1OxvN2gdJ0b8ndWZpa9RG6xwxHf\"}";
+
+    String mBase64PublicKey;
+    PublicKey mPublicKey;
+    String mSignature;
+    byte[] mRawSignature;
+    byte[] mPurchaseBytes;
+    SignatureVerifier mVerifier;
+    Signature mCachedSignature;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Security.getVerificationCache().setMaxSize(0);
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keys = generator.generateKeyPair();
+
+        Signature signer = Signature.getInstance(Security.ALGORITHM_SHA1_RSA);
+        signer.initSign(keys.getPrivate());
+        signer.update(PURCHASE_DATA.getBytes("UTF-8"));
+        mRawSignature = signer.sign();
+
+        mBase64PublicKey = Base64.encode(keys.getPublic().getEncoded());
+        mPublicKey = Security.generatePublicKey(mBase64PublicKey);
+        mSignature = Base64.encode(mRawSignature);
+        mPurchaseBytes = PURCHASE_DATA.getBytes("UTF-8");
+        mVerifier = Security.getVerifier(mBase64PublicKey);
+
+        mCachedSignature = Signature.getInstance(Security.ALGORITHM_SHA1_RSA);
+        mCachedSignature.initVerify(keys.getPublic());
+    }
+
+    @Benchmark
+    public PublicKey generatePublicKey() {
+        return Security.generatePublicKey(mBase64PublicKey);
+    }
+
+    @Benchmark
+    public PublicKey generatePublicKeyJdk() throws Exception {
+        byte[] encoded = java.util.Base64.getDecoder().decode(mBase64PublicKey);
+        return java.security.KeyFactory.getInstance("RSA")
+                .generatePublic(new java.security.spec.X509EncodedKeySpec(encoded));
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return Security.verify(mPublicKey, PURCHASE_DATA, mSignature);
+    }
+
+    @Benchmark
+    public boolean verifyPurchase() {
+        return Security.verifyPurchase(mBase64PublicKey, PURCHASE_DATA, mSignature);
+    }
+
+    @Benchmark
+    public boolean verifierBytes() {
+        return mVerifier.verify(mPurchaseBytes, 0, mPurchaseBytes.length, mRawSignature, 0, mRawSignature.length);
+    }
+
+    @Benchmark
+    public boolean verifyJdk() throws Exception {
+        byte[] encoded = java.util.Base64.getDecoder().decode(mBase64PublicKey);
+        PublicKey key = java.security.KeyFactory.getInstance("RSA")
+                .generatePublic(new java.security.spec.X509EncodedKeySpec(encoded));
+        Signature sig = Signature.getInstance(Security.ALGORITHM_SHA1_RSA);
+        sig.initVerify(key);
+        sig.update(PURCHASE_DATA.getBytes("UTF-8"));
+        return sig.verify(java.util.Base64.getDecoder().decode(mSignature));
+    }
+
+    @Benchmark
+    public boolean verifyCachedKey() throws Exception {
+        mCachedSignature.update(mPurchaseBytes);
+        return mCachedSignature.verify(mRawSignature);
+    }
+
+    /**
+     * {@link Security#verifyPurchase} with the verification cache on, for a
+     * purchase that was verified before, as on every refresh after the first.
+     * Each benchmark runs in its own fork, so this does not affect the others.
+     */
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    @State(Scope.Thread)
+    public static class Cached {
+        final SecurityBenchmark mKeys = new SecurityBenchmark();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            mKeys.setUp();
+            Security.getVerificationCache().setMaxSize(64);
+        }
+
+        @Benchmark
+        public boolean verifyPurchase() {
+            return Security.verifyPurchase(mKeys.mBase64PublicKey, PURCHASE_DATA, mKeys.mSignature);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+// Portions copyright 2002, Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.developer4droid.trivialdrivesample.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link JsonTokenizer} reads the same values as
+ * {@link JSONObject#optString} and {@link JSONObject#optLong}, which
+ * Purchase and SkuDetails used before, and that it rejects malformed input.
+ */
+public class JsonTokenizerTest {
+    private static final String[] PARITY_INPUTS = {
+        "{}",
+        "{\"productId\":\"gas\",\"purchaseTime\":1345678900000,\"purchaseState\":0}",
+        " { \"orderId\" : \"12999763169054705758.1371079406387615\" ,\n\t\"developerPayload\":\"\" } ",
+        // escapes
+        "{\"a\":\"quote \\\" backslash \\\\ slash \\/ controls \\b\\f\\n\\r\\t\"}",
+        "{\"a\":\"\\u00e9t\\u00E9 \\u20ac \\ud83d\\ude00\",\"b\":\"plain\"}",
+        "{\"esc\\u0061ped\":\"name\",\"x\\\"y\":\"z\"}",
+        // nested values, skipped over
+        "{\"o\":{\"a\":[1,{\"b\":\"}]\"}],\"c\":{}},\"after\":\"ok\"}",
+        "{\"arr\":[\"[\",\"{\",[],[[]]],\"n\":7}",
+        "{\"t\":true,\"f\":false,\"z\":null,\"s\":\"str\"}",
+        // numbers
+        "{\"n\":0,\"m\":-1,\"d\":1.9,\"e\":-2.5e3,\"big\":123456789012345678}",
+        "{\"n19\":1234567890123456789,\"max\":9223372036854775807,\"min\":-9223372036854775808}",
+        "{\"q\":\"9223372036854775807\",\"qn\":\"-42\",\"qd\":\"3.75\"}",
+        "{\"notnum\":\"gas\",\"empty\":\"\"}",
+    };
+
+    // Input org.json rejects too
+    private static final String[] MALFORMED_INPUTS = {
+        "",
+        "{",
+        "{\"a\":}",
+        "{\"a\" 1}",
+        "{\"a\":\"unterminated}",
+        "{\"a\":1 \"b\":2}",
+        "{\"a\":\"\\u12\"}",
+        "{\"a\":\"\\u12zz\"}",
+        "{\"a\":{\"b\":1}",
+        "[1,2]",
+    };
+
+    // Input org.json is lenient about but the billing service never sends
+    private static final String[] NON_STRICT_INPUTS = {
+        "{\"a\":1}x",
+        "{'a':1}",
+        "{a:1}",
+    };
+
+    @Test
+    public void valuesMatchOrgJson() throws JSONException {
+        for (String json : PARITY_INPUTS) {
+            JSONObject expected = new JSONObject(json);
+            String[] names = JSONObject.getNames(expected);
+            if (names == null) names = new String[0];
+
+            Map<String,int[]> spans = readSpans(json, names);
+            assertEquals(json, names.length, spans.size());
+            for (String name : names) {
+                int[] span = spans.get(name);
+                Object value = expected.get(name);
+                String where = json + " [" + name + "]";
+                if (value instanceof String) {
+                    assertEquals(where, expected.optString(name), JsonTokenizer.decodeString(json, span[0], span[1]));
+                    if (isLong((String) value)) {
+                        assertEquals(where, expected.optLong(name), JsonTokenizer.decodeLong(json, span[0], span[1]));
+                    }
+                }
+                else if (value instanceof Number) {
+                    assertEquals(where, expected.optLong(name), JsonTokenizer.decodeLong(json, span[0], span[1]));
+                }
+                else if (value instanceof JSONObject) {
+                    assertTrue(where, ((JSONObject) value).similar(
+                            new JSONObject(JsonTokenizer.decodeString(json, span[0], span[1]))));
+                }
+                else if (value instanceof JSONArray) {
+                    assertTrue(where, ((JSONArray) value).similar(
+                            new JSONArray(JsonTokenizer.decodeString(json, span[0], span[1]))));
+                }
+                else {
+                    // true, false and null are returned as written
+                    assertEquals(where, String.valueOf(value), JsonTokenizer.decodeString(json, span[0], span[1]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stringEqualsMatchesDecodeString() throws JSONException {
+        for (String json : PARITY_INPUTS) {
+            String[] names = JSONObject.getNames(new JSONObject(json));
+            if (names == null) continue;
+            for (Map.Entry<String,int[]> entry : readSpans(json, names).entrySet()) {
+                int[] span = entry.getValue();
+                String value = JsonTokenizer.decodeString(json, span[0], span[1]);
+                String where = json + " [" + entry.getKey() + "]";
+                assertTrue(where, JsonTokenizer.stringEquals(json, span[0], span[1], value));
+                assertFalse(where, JsonTokenizer.stringEquals(json, span[0], span[1], value + "x"));
+                if (value.length() > 0) {
+                    assertFalse(where, JsonTokenizer.stringEquals(json, span[0], span[1], value.substring(1)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void longsOver18DigitsAreExact() throws JSONException {
+        JsonTokenizer reader = new JsonTokenizer("{\"t\":1234567890123456789,\"u\":\"-9223372036854775807\"}");
+        reader.beginObject();
+        assertTrue(reader.hasNext());
+        assertEquals(0, reader.nextName(new String[] { "t" }));
+        assertEquals(1234567890123456789L, reader.nextLong());
+        assertTrue(reader.hasNext());
+        assertEquals(-1, reader.nextName(new String[] { "t" }));
+        assertEquals(-9223372036854775807L, reader.nextLong());
+        reader.endObject();
+    }
+
+    @Test
+    public void unknownNamesAreSkipped() throws JSONException {
+        String[] names = { "productId", "price" };
+        JsonTokenizer reader = new JsonTokenizer(
+                "{\"skip\":{\"price\":\"no\"},\"price\":\"$0.99\",\"other\":[1],\"productId\":\"gas\"}");
+        String price = null, sku = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName(names)) {
+                case 0: sku = reader.nextString(); break;
+                case 1: price = reader.nextString(); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        assertEquals("gas", sku);
+        assertEquals("$0.99", price);
+    }
+
+    @Test
+    public void malformedInputIsRejected() {
+        for (String json : MALFORMED_INPUTS) {
+            try {
+                new JSONObject(json);
+                fail("org.json accepted " + json);
+            }
+            catch (JSONException expected) {
+            }
+            assertRejected(json);
+        }
+    }
+
+    @Test
+    public void nonStrictInputIsRejected() {
+        for (String json : NON_STRICT_INPUTS) assertRejected(json);
+    }
+
+    private static void assertRejected(String json) {
+        try {
+            readSpans(json, new String[0]);
+            fail("JsonTokenizer accepted " + json);
+        }
+        catch (JSONException expected) {
+        }
+    }
+
+    // Reads every member, returning the value span of each known name
+    private static Map<String,int[]> readSpans(String json, String[] names) throws JSONException {
+        Map<String,int[]> spans = new HashMap<String,int[]>();
+        JsonTokenizer reader = new JsonTokenizer(json);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int index = reader.nextName(names);
+            reader.skipValue();
+            if (index >= 0) spans.put(names[index], new int[] { reader.mValueStart, reader.mValueEnd });
+        }
+        reader.endObject();
+        return spans;
+    }
+
+    private static boolean isLong(String s) {
+        try {
+            Long.parseLong(s);
+            return true;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
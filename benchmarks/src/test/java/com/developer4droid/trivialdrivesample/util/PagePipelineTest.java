@@ -0,0 +1,141 @@
+// Portions copyright 2002, Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.developer4droid.trivialdrivesample.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link PagePipeline} processes a page while the caller fetches
+ * the next one, the way IabHelper.queryPurchases uses it, and that it still
+ * returns every page in order when no thread is free to help.
+ */
+public class PagePipelineTest {
+    private static final int PAGES = 6;
+    private static final int MAX_IN_FLIGHT = 2;
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        // like Security's verification pool on a single-core device
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void fetchOverlapsProcessing() throws Exception {
+        final CountDownLatch[] processing = new CountDownLatch[PAGES];
+        for (int i = 0; i < PAGES; ++i) processing[i] = new CountDownLatch(1);
+
+        PagePipeline<Integer> pipeline = new PagePipeline<Integer>(mExecutor, MAX_IN_FLIGHT);
+        List<Integer> results = new ArrayList<Integer>();
+        for (int i = 0; i < PAGES; ++i) {
+            if (i > 0) {
+                // "fetching" page i only finishes once page i - 1 is being processed
+                // elsewhere; run one after the other, this would time out
+                assertTrue("page " + (i - 1) + " was not processed while fetching page " + i,
+                        processing[i - 1].await(10, TimeUnit.SECONDS));
+            }
+            if (pipeline.isFull()) results.add(pipeline.takeOldest().get());
+            pipeline.add(page(i, processing[i]));
+        }
+        while (!pipeline.isEmpty()) results.add(pipeline.takeOldest().get());
+
+        assertPagesInOrder(results);
+    }
+
+    @Test
+    public void busyExecutorFallsBackToCaller() throws Exception {
+        // the situation of the helper's own two-thread executor while a refresh
+        // and a subscription query occupy both threads
+        final CountDownLatch release = new CountDownLatch(1);
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        try {
+            assertPagesInOrder(runPages(new PagePipeline<Integer>(mExecutor, MAX_IN_FLIGHT)));
+        }
+        finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void rejectedPagesRunOnCaller() throws Exception {
+        mExecutor.shutdown();
+        assertPagesInOrder(runPages(new PagePipeline<Integer>(mExecutor, MAX_IN_FLIGHT)));
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void pageFailuresReachTheCaller() throws Exception {
+        PagePipeline<Integer> pipeline = new PagePipeline<Integer>(mExecutor, MAX_IN_FLIGHT);
+        pipeline.add(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                throw new Exception("bad page");
+            }
+        });
+        pipeline.takeOldest().get();
+    }
+
+    private static List<Integer> runPages(PagePipeline<Integer> pipeline) throws Exception {
+        List<Integer> results = new ArrayList<Integer>();
+        for (int i = 0; i < PAGES; ++i) {
+            if (pipeline.isFull()) results.add(pipeline.takeOldest().get());
+            pipeline.add(page(i, new CountDownLatch(1)));
+        }
+        while (!pipeline.isEmpty()) results.add(pipeline.takeOldest().get());
+        return results;
+    }
+
+    private static Callable<Integer> page(final int index, final CountDownLatch started) {
+        return new Callable<Integer>() {
+            public Integer call() {
+                started.countDown();
+                return index;
+            }
+        };
+    }
+
+    private static void assertPagesInOrder(List<Integer> results) {
+        assertEquals(PAGES, results.size());
+        for (int i = 0; i < PAGES; ++i) assertEquals(Integer.valueOf(i), results.get(i));
+    }
+}
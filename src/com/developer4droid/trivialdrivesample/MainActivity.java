@@ -27,6 +27,8 @@ import com.developer4droid.trivialdrivesample.util.IabResult;
 import com.developer4droid.trivialdrivesample.util.Inventory;
 import com.developer4droid.trivialdrivesample.util.Purchase;
 
+import java.io.File;
+
 
 
 
@@ -118,6 +120,10 @@ public class MainActivity extends Activity implements View.OnClickListener {
     // The helper object
     IabHelper mHelper;
 
+    // Has the helper finished setting up? Until then nothing can be bought, even
+    // if the cached inventory is already on screen.
+    boolean mBillingReady = false;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -162,6 +168,21 @@ public class MainActivity extends Activity implements View.OnClickListener {
         // enable debug logging (for a production application, you should set this to false).
         mHelper.enableDebugLogging(true);
 
+        // Apply what we owned last time right away, so the user doesn't have to wait
+        // for the billing service. The inventory query below reconciles it.
+        mHelper.enableInventoryCacheAsync(new File(getFilesDir(), "inventory.cache"),
+                new IabHelper.OnInventoryCacheLoadedListener() {
+            public void onInventoryCacheLoaded(Inventory cachedInventory) {
+                // The activity may have been destroyed while the file was read
+                if (mHelper == null || cachedInventory == null) return;
+
+                Log.d(TAG, "Applying cached inventory.");
+                applyInventory(cachedInventory);
+                updateUi();
+                setWaitScreen(false);
+            }
+        });
+
         // Start setup. This is asynchronous and the specified listener
         // will be called once setup completes.
         Log.d(TAG, "Starting setup.");
@@ -177,6 +198,8 @@ public class MainActivity extends Activity implements View.OnClickListener {
 
                 // Hooray, IAB is fully set up. Now, let's get an inventory of stuff we own.
                 Log.d(TAG, "Setup successful. Querying inventory.");
+                mBillingReady = true;
+                updateUi();
                 mHelper.queryInventoryAsync(mGotInventoryListener);
             }
         });
@@ -206,10 +229,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
              * verifyDeveloperPayload().
              */
             
-			// Check every purchased plan?
-			Purchase goldMonthPurchase = inventory.getPurchase(IabHelper.SKU_GOLD_MONTH);
-
-			isGoldMonthPayed = goldMonthPurchase != null && verifyDeveloperPayload(goldMonthPurchase);
+            applyInventory(inventory);
 
             updateUi();
             setWaitScreen(false);
@@ -217,6 +237,14 @@ public class MainActivity extends Activity implements View.OnClickListener {
         }
     };
     
+    /** Sets our entitlements from the items we own in the given inventory. */
+    void applyInventory(Inventory inventory) {
+		// Check every purchased plan?
+		Purchase goldMonthPurchase = inventory.getPurchase(IabHelper.SKU_ID_GOLD_MONTH);
+
+		isGoldMonthPayed = goldMonthPurchase != null && verifyDeveloperPayload(goldMonthPurchase);
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         Log.d(TAG, "onActivityResult(" + requestCode + "," + resultCode + "," + data);
@@ -370,12 +398,12 @@ public class MainActivity extends Activity implements View.OnClickListener {
 
     // updates UI to reflect model
     public void updateUi() {
-		findViewById(R.id.goldMonthBtn).setEnabled(!isGoldMonthPayed);
-		findViewById(R.id.goldYearBtn).setEnabled(!isGoldYearPayed);
-		findViewById(R.id.platinumMonthBtn).setEnabled(!isPlatinumMonthPayed);
-		findViewById(R.id.platinumYearBtn).setEnabled(!isPlatinumYearPayed);
-		findViewById(R.id.diamondMonthBtn).setEnabled(!isDiamondMonthPayed);
-		findViewById(R.id.diamondYearBtn).setEnabled(!isDiamondYearPayed);
+		findViewById(R.id.goldMonthBtn).setEnabled(mBillingReady && !isGoldMonthPayed);
+		findViewById(R.id.goldYearBtn).setEnabled(mBillingReady && !isGoldYearPayed);
+		findViewById(R.id.platinumMonthBtn).setEnabled(mBillingReady && !isPlatinumMonthPayed);
+		findViewById(R.id.platinumYearBtn).setEnabled(mBillingReady && !isPlatinumYearPayed);
+		findViewById(R.id.diamondMonthBtn).setEnabled(mBillingReady && !isDiamondMonthPayed);
+		findViewById(R.id.diamondYearBtn).setEnabled(mBillingReady && !isDiamondYearPayed);
 
 
 //        // update the car color to reflect premium status or lack thereof
@@ -459,6 +487,11 @@ public class MainActivity extends Activity implements View.OnClickListener {
 	}
 
 	private void sendPaymentRequest(String itemId) {
+		// The cached inventory can be on screen before setup has finished
+		if (!mBillingReady) {
+			alert("Still connecting to Google Play. Please try again in a moment.");
+			return;
+		}
 		if (!mHelper.subscriptionsSupported()) {
 			complain("Subscriptions not supported on your device yet. Sorry!");
 			return;
@@ -14,6 +14,10 @@
 
 package com.developer4droid.trivialdrivesample.util;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
 // This code was converted from code at http://iharder.sourceforge.net/base64/
 // Lots of extraneous features were removed.
 /* The original code said:
@@ -46,15 +50,15 @@ public class Base64 {
     public final static boolean DECODE = false;
 
     /** The equals sign (=) as a byte. */
-    private final static byte EQUALS_SIGN = (byte) '=';
+    final static byte EQUALS_SIGN = (byte) '=';
 
     /** The new line character (\n) as a byte. */
-    private final static byte NEW_LINE = (byte) '\n';
+    final static byte NEW_LINE = (byte) '\n';
 
     /**
      * The 64 valid Base64 values.
      */
-    private final static byte[] ALPHABET =
+    final static byte[] ALPHABET =
         {(byte) 'A', (byte) 'B', (byte) 'C', (byte) 'D', (byte) 'E', (byte) 'F',
         (byte) 'G', (byte) 'H', (byte) 'I', (byte) 'J', (byte) 'K',
         (byte) 'L', (byte) 'M', (byte) 'N', (byte) 'O', (byte) 'P',
@@ -72,7 +76,7 @@ public class Base64 {
     /**
      * The 64 valid web safe Base64 values.
      */
-    private final static byte[] WEBSAFE_ALPHABET =
+    final static byte[] WEBSAFE_ALPHABET =
         {(byte) 'A', (byte) 'B', (byte) 'C', (byte) 'D', (byte) 'E', (byte) 'F',
         (byte) 'G', (byte) 'H', (byte) 'I', (byte) 'J', (byte) 'K',
         (byte) 'L', (byte) 'M', (byte) 'N', (byte) 'O', (byte) 'P',
@@ -91,7 +95,7 @@ public class Base64 {
      * Translates a Base64 value to either its 6-bit reconstruction value
      * or a negative number indicating some other meaning.
      **/
-    private final static byte[] DECODABET = {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
+    final static byte[] DECODABET = {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
         -5, -5, // Whitespace: Tab and Linefeed
         -9, -9, // Decimal 11 - 12
         -5, // Whitespace: Carriage Return
@@ -125,7 +129,7 @@ public class Base64 {
     };
 
     /** The web safe decodabet */
-    private final static byte[] WEBSAFE_DECODABET =
+    final static byte[] WEBSAFE_DECODABET =
         {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
         -5, -5, // Whitespace: Tab and Linefeed
         -9, -9, // Decimal 11 - 12
@@ -161,9 +165,9 @@ public class Base64 {
         };
 
     // Indicates white space in encoding
-    private final static byte WHITE_SPACE_ENC = -5;
+    final static byte WHITE_SPACE_ENC = -5;
     // Indicates equals sign in encoding
-    private final static byte EQUALS_SIGN_ENC = -1;
+    final static byte EQUALS_SIGN_ENC = -1;
 
     /** Defeats instantiation. */
     private Base64() {
@@ -193,7 +197,7 @@ public class Base64 {
      * @return the <var>destination</var> array
      * @since 1.3
      */
-    private static byte[] encode3to4(byte[] source, int srcOffset,
+    static byte[] encode3to4(byte[] source, int srcOffset,
             int numSigBytes, byte[] destination, int destOffset, byte[] alphabet) {
         //           1         2         3
         // 01234567890123456789012345678901 Bit position
@@ -307,6 +311,31 @@ public class Base64 {
         int e = 0;
         int len2 = len - 2;
         int lineLength = 0;
+
+        // Fast path for output that fits on one line: six source bytes packed
+        // into a long give eight output characters per iteration
+        if (len43 < maxLineLength) {
+            int len6 = len - 6;
+            for (; d <= len6; d += 6, e += 8) {
+                long inBuff =
+                        ((source[d + off] & 0xffL) << 40)
+                        | ((source[d + 1 + off] & 0xffL) << 32)
+                        | ((source[d + 2 + off] & 0xffL) << 24)
+                        | ((source[d + 3 + off] & 0xffL) << 16)
+                        | ((source[d + 4 + off] & 0xffL) << 8)
+                        | (source[d + 5 + off] & 0xffL);
+                outBuff[e] = alphabet[(int) (inBuff >>> 42)];
+                outBuff[e + 1] = alphabet[(int) (inBuff >>> 36) & 0x3f];
+                outBuff[e + 2] = alphabet[(int) (inBuff >>> 30) & 0x3f];
+                outBuff[e + 3] = alphabet[(int) (inBuff >>> 24) & 0x3f];
+                outBuff[e + 4] = alphabet[(int) (inBuff >>> 18) & 0x3f];
+                outBuff[e + 5] = alphabet[(int) (inBuff >>> 12) & 0x3f];
+                outBuff[e + 6] = alphabet[(int) (inBuff >>> 6) & 0x3f];
+                outBuff[e + 7] = alphabet[(int) inBuff & 0x3f];
+            }
+            lineLength = e;
+        }
+
         for (; d < len2; d += 3, e += 4) {
 
             // The following block of code is the same as
@@ -350,86 +379,52 @@ public class Base64 {
 
 
     /**
-     * Decodes four bytes from array <var>source</var>
-     * and writes the resulting bytes (up to three of them)
-     * to <var>destination</var>.
-     * The source and destination arrays can be manipulated
-     * anywhere along their length by specifying
-     * <var>srcOffset</var> and <var>destOffset</var>.
-     * This method does not check to make sure your arrays
-     * are large enough to accommodate <var>srcOffset</var> + 4 for
-     * the <var>source</var> array or <var>destOffset</var> + 3 for
-     * the <var>destination</var> array.
-     * This method returns the actual number of bytes that
-     * were converted from the Base64 encoding.
-     *
+     * Decodes data from Base64 notation. The characters are read directly,
+     * without first converting the string to bytes.
      *
-     * @param source the array to convert
-     * @param srcOffset the index where conversion begins
-     * @param destination the array to hold the conversion
-     * @param destOffset the index where output will be put
-     * @param decodabet the decodabet for decoding Base64 content
-     * @return the number of decoded bytes converted
-     * @since 1.3
+     * @param s the string to decode
+     * @return the decoded data
+     * @since 1.4
      */
-    private static int decode4to3(byte[] source, int srcOffset,
-            byte[] destination, int destOffset, byte[] decodabet) {
-        // Example: Dk==
-        if (source[srcOffset + 2] == EQUALS_SIGN) {
-            int outBuff =
-                    ((decodabet[source[srcOffset]] << 24) >>> 6)
-                    | ((decodabet[source[srcOffset + 1]] << 24) >>> 12);
-
-            destination[destOffset] = (byte) (outBuff >>> 16);
-            return 1;
-        } else if (source[srcOffset + 3] == EQUALS_SIGN) {
-            // Example: DkL=
-            int outBuff =
-                    ((decodabet[source[srcOffset]] << 24) >>> 6)
-                    | ((decodabet[source[srcOffset + 1]] << 24) >>> 12)
-                    | ((decodabet[source[srcOffset + 2]] << 24) >>> 18);
-
-            destination[destOffset] = (byte) (outBuff >>> 16);
-            destination[destOffset + 1] = (byte) (outBuff >>> 8);
-            return 2;
-        } else {
-            // Example: DkLE
-            int outBuff =
-                    ((decodabet[source[srcOffset]] << 24) >>> 6)
-                    | ((decodabet[source[srcOffset + 1]] << 24) >>> 12)
-                    | ((decodabet[source[srcOffset + 2]] << 24) >>> 18)
-                    | ((decodabet[source[srcOffset + 3]] << 24) >>> 24);
-
-            destination[destOffset] = (byte) (outBuff >> 16);
-            destination[destOffset + 1] = (byte) (outBuff >> 8);
-            destination[destOffset + 2] = (byte) (outBuff);
-            return 3;
-        }
-    } // end decodeToBytes
-
+    public static byte[] decode(CharSequence s) throws Base64DecoderException {
+        return decode(s, 0, s.length(), DECODABET);
+    }
 
     /**
-     * Decodes data from Base64 notation.
+     * Decodes data from web safe Base64 notation.
+     * Web safe encoding uses '-' instead of '+', '_' instead of '/'
      *
-     * @param s the string to decode (decoded in default encoding)
+     * @param s the string to decode
      * @return the decoded data
-     * @since 1.4
      */
-    public static byte[] decode(String s) throws Base64DecoderException {
-        byte[] bytes = s.getBytes();
-        return decode(bytes, 0, bytes.length);
+    public static byte[] decodeWebSafe(CharSequence s) throws Base64DecoderException {
+        return decode(s, 0, s.length(), WEBSAFE_DECODABET);
     }
 
     /**
-     * Decodes data from web safe Base64 notation.
+     * Decodes Base64 content from a range of a char array.
+     *
+     * @param source the Base64 encoded data
+     * @param off    the offset of where to begin decoding
+     * @param len    the length of characters to decode
+     * @return decoded data
+     */
+    public static byte[] decode(char[] source, int off, int len) throws Base64DecoderException {
+        return decode(CharBuffer.wrap(source, off, len), 0, len, DECODABET);
+    }
+
+    /**
+     * Decodes web safe Base64 content from a range of a char array.
      * Web safe encoding uses '-' instead of '+', '_' instead of '/'
      *
-     * @param s the string to decode (decoded in default encoding)
-     * @return the decoded data
+     * @param source the Base64 encoded data
+     * @param off    the offset of where to begin decoding
+     * @param len    the length of characters to decode
+     * @return decoded data
      */
-    public static byte[] decodeWebSafe(String s) throws Base64DecoderException {
-        byte[] bytes = s.getBytes();
-        return decodeWebSafe(bytes, 0, bytes.length);
+    public static byte[] decodeWebSafe(char[] source, int off, int len)
+            throws Base64DecoderException {
+        return decode(CharBuffer.wrap(source, off, len), 0, len, WEBSAFE_DECODABET);
     }
 
     /**
@@ -501,70 +496,401 @@ public class Base64 {
      */
     public static byte[] decode(byte[] source, int off, int len, byte[] decodabet)
             throws Base64DecoderException {
-        int len34 = len * 3 / 4;
-        byte[] outBuff = new byte[2 + len34]; // Upper limit on size of output
-        int outBuffPosn = 0;
+        // Trailing padding and whitespace produce no output; leaving them out of
+        // the size estimate makes it exact for the usual unwrapped input
+        int end = off + len;
+        while (end > off && decodabet[source[end - 1] & 0x7f] < 0
+                && decodabet[source[end - 1] & 0x7f] >= WHITE_SPACE_ENC) {
+            end--;
+        }
+        byte[] outBuff = new byte[maxDecodedLength(end - off)];
+        int outBuffPosn = decodeInto(source, off, len, outBuff, 0, decodabet);
+        if (outBuffPosn == outBuff.length) {
+            return outBuff;
+        }
+
+        byte[] out = new byte[outBuffPosn];
+        System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
+        return out;
+    }
+
+    /**
+     * Returns the largest number of bytes that <var>len</var> characters of
+     * Base64 can decode to. The actual number is smaller if the input contains
+     * padding or whitespace.
+     *
+     * @param len the number of encoded characters
+     * @return an upper bound on the decoded length
+     */
+    public static int maxDecodedLength(int len) {
+        return (int) (len * 3L / 4);
+    }
+
+    /**
+     * Decodes Base64 content into a caller-supplied array, without allocating.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @param destination the array to hold the decoded data; it must have room for
+     *     {@link #maxDecodedLength}(len) bytes unless the input is known to be shorter
+     * @param destOffset the index where output will be put
+     * @return the number of bytes written to destination
+     * @throws IndexOutOfBoundsException if destination is too small
+     */
+    public static int decodeInto(byte[] source, int off, int len, byte[] destination,
+            int destOffset) throws Base64DecoderException {
+        return decodeInto(source, off, len, destination, destOffset, DECODABET);
+    }
+
+    /**
+     * Decodes web safe Base64 content into a caller-supplied array, without
+     * allocating. See {@link #decodeInto(byte[], int, int, byte[], int)}.
+     */
+    public static int decodeWebSafeInto(byte[] source, int off, int len, byte[] destination,
+            int destOffset) throws Base64DecoderException {
+        return decodeInto(source, off, len, destination, destOffset, WEBSAFE_DECODABET);
+    }
+
+    /**
+     * Decodes the remaining bytes of <var>src</var> into <var>dst</var>, without
+     * allocating. Either buffer may be a direct buffer. The position of src is
+     * advanced to its limit and the position of dst by the number of bytes written.
+     *
+     * @param src the Base64 encoded data
+     * @param dst the buffer to hold the decoded data
+     * @return the number of bytes written to dst
+     * @throws BufferOverflowException if dst has too little room, whether it is a
+     *     heap or a direct buffer
+     */
+    public static int decodeInto(ByteBuffer src, ByteBuffer dst) throws Base64DecoderException {
+        return decodeInto(src, dst, DECODABET);
+    }
+
+    /**
+     * Decodes the remaining bytes of <var>src</var> from web safe Base64 into
+     * <var>dst</var>. See {@link #decodeInto(ByteBuffer, ByteBuffer)}.
+     */
+    public static int decodeWebSafeInto(ByteBuffer src, ByteBuffer dst)
+            throws Base64DecoderException {
+        return decodeInto(src, dst, WEBSAFE_DECODABET);
+    }
+
+    /**
+     * Decodes the remaining bytes of <var>src</var> into <var>dst</var> using
+     * the supplied decodabet. See {@link #decodeInto(ByteBuffer, ByteBuffer)}.
+     */
+    public static int decodeInto(ByteBuffer src, ByteBuffer dst, byte[] decodabet)
+            throws Base64DecoderException {
+        int len = src.remaining();
+        if (src.hasArray() && dst.hasArray()) {
+            int written;
+            try {
+                written = decodeInto(src.array(), src.arrayOffset() + src.position(), len,
+                        dst.array(), dst.arrayOffset() + dst.position(), dst.remaining(), decodabet);
+            } catch (IndexOutOfBoundsException e) {
+                // report it the way ByteBuffer.put would on the direct path
+                throw new BufferOverflowException();
+            }
+            src.position(src.limit());
+            dst.position(dst.position() + written);
+            return written;
+        }
 
-        byte[] b4 = new byte[4];
+        int off = src.position();
+        int start = dst.position();
+        int quantum = 0;
         int b4Posn = 0;
-        int i = 0;
-        byte sbiCrop = 0;
-        byte sbiDecode = 0;
-        for (i = 0; i < len; i++) {
-            sbiCrop = (byte) (source[i + off] & 0x7f); // Only the low seven bits
-            sbiDecode = decodabet[sbiCrop];
+        for (int i = 0; i < len; i++) {
+            byte sbiCrop = (byte) (src.get(i + off) & 0x7f); // Only the low seven bits
+            byte sbiDecode = decodabet[sbiCrop];
 
             if (sbiDecode >= WHITE_SPACE_ENC) { // White space Equals sign or better
                 if (sbiDecode >= EQUALS_SIGN_ENC) {
-                    // An equals sign (for padding) must not occur at position 0 or 1
-                    // and must be the last byte[s] in the encoded value
                     if (sbiCrop == EQUALS_SIGN) {
-                        int bytesLeft = len - i;
-                        byte lastByte = (byte) (source[len - 1 + off] & 0x7f);
-                        if (b4Posn == 0 || b4Posn == 1) {
-                            throw new Base64DecoderException(
-                                    "invalid padding byte '=' at byte offset " + i);
-                        } else if ((b4Posn == 3 && bytesLeft > 2)
-                                || (b4Posn == 4 && bytesLeft > 1)) {
-                            throw new Base64DecoderException(
-                                    "padding byte '=' falsely signals end of encoded value "
-                                            + "at offset " + i);
-                        } else if (lastByte != EQUALS_SIGN && lastByte != NEW_LINE) {
-                            throw new Base64DecoderException(
-                                    "encoded value has invalid trailing byte");
-                        }
+                        checkPadding(b4Posn, len - i, (byte) (src.get(len - 1 + off) & 0x7f), i);
                         break;
                     }
 
-                    b4[b4Posn++] = sbiCrop;
-                    if (b4Posn == 4) {
-                        outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
+                    quantum = (quantum << 6) | sbiDecode;
+                    if (++b4Posn == 4) {
+                        dst.put((byte) (quantum >> 16));
+                        dst.put((byte) (quantum >> 8));
+                        dst.put((byte) quantum);
+                        quantum = 0;
                         b4Posn = 0;
                     }
                 }
             } else {
                 throw new Base64DecoderException("Bad Base64 input character at " + i
-                        + ": " + source[i + off] + "(decimal)");
+                        + ": " + src.get(i + off) + "(decimal)");
             }
         }
 
-        // Because web safe encoding allows non padding base64 encodes, we
-        // need to pad the rest of the b4 buffer with equal signs when
-        // b4Posn != 0.  There can be at most 2 equal signs at the end of
-        // four characters, so the b4 buffer must have two or three
-        // characters.  This also catches the case where the input is
-        // padded with EQUALS_SIGN
-        if (b4Posn != 0) {
-            if (b4Posn == 1) {
-                throw new Base64DecoderException("single trailing character at offset "
-                        + (len - 1));
+        switch (checkTail(b4Posn, len)) {
+            case 1:
+                dst.put((byte) (quantum >> 4));
+                break;
+            case 2:
+                dst.put((byte) (quantum >> 10));
+                dst.put((byte) (quantum >> 2));
+                break;
+        }
+        src.position(src.limit());
+        return dst.position() - start;
+    }
+
+    /**
+     * Decodes Base64 content into a caller-supplied array using the supplied
+     * decodabet. See {@link #decodeInto(byte[], int, int, byte[], int)}.
+     */
+    public static int decodeInto(byte[] source, int off, int len, byte[] destination,
+            int destOffset, byte[] decodabet) throws Base64DecoderException {
+        return decodeInto(source, off, len, destination, destOffset,
+                destination.length - destOffset, decodabet);
+    }
+
+    private static int decodeInto(byte[] source, int off, int len, byte[] destination,
+            int destOffset, int destLength, byte[] decodabet) throws Base64DecoderException {
+        int outBuffPosn = destOffset;
+        int outBuffLimit = destOffset + destLength;
+
+        // The 6-bit values of the current quantum are shifted into an int
+        // as they arrive, so no intermediate buffer is needed
+        int quantum = 0;
+        int b4Posn = 0;
+        for (int i = 0; i < len; i++) {
+            // Fast path: at a quantum boundary, decode eight characters at a
+            // time into a long. Any whitespace, padding or invalid character
+            // decodes to a negative value and sends that block to the
+            // character-at-a-time code below.
+            if (b4Posn == 0) {
+                while (i + 8 <= len) {
+                    int p = i + off;
+                    int c0 = decodabet[source[p] & 0x7f];
+                    int c1 = decodabet[source[p + 1] & 0x7f];
+                    int c2 = decodabet[source[p + 2] & 0x7f];
+                    int c3 = decodabet[source[p + 3] & 0x7f];
+                    int c4 = decodabet[source[p + 4] & 0x7f];
+                    int c5 = decodabet[source[p + 5] & 0x7f];
+                    int c6 = decodabet[source[p + 6] & 0x7f];
+                    int c7 = decodabet[source[p + 7] & 0x7f];
+                    if ((c0 | c1 | c2 | c3 | c4 | c5 | c6 | c7) < 0) break;
+                    if (outBuffPosn + 6 > outBuffLimit) throw overflow(destLength);
+
+                    long outBuff48 = ((long) c0 << 42) | ((long) c1 << 36) | ((long) c2 << 30)
+                            | ((long) c3 << 24) | (c4 << 18) | (c5 << 12) | (c6 << 6) | c7;
+                    destination[outBuffPosn] = (byte) (outBuff48 >>> 40);
+                    destination[outBuffPosn + 1] = (byte) (outBuff48 >>> 32);
+                    destination[outBuffPosn + 2] = (byte) (outBuff48 >>> 24);
+                    destination[outBuffPosn + 3] = (byte) (outBuff48 >>> 16);
+                    destination[outBuffPosn + 4] = (byte) (outBuff48 >>> 8);
+                    destination[outBuffPosn + 5] = (byte) outBuff48;
+                    outBuffPosn += 6;
+                    i += 8;
+                }
+                if (i == len) break;
+            }
+
+            byte sbiCrop = (byte) (source[i + off] & 0x7f); // Only the low seven bits
+            byte sbiDecode = decodabet[sbiCrop];
+
+            if (sbiDecode >= WHITE_SPACE_ENC) { // White space Equals sign or better
+                if (sbiDecode >= EQUALS_SIGN_ENC) {
+                    if (sbiCrop == EQUALS_SIGN) {
+                        checkPadding(b4Posn, len - i, (byte) (source[len - 1 + off] & 0x7f), i);
+                        break;
+                    }
+
+                    quantum = (quantum << 6) | sbiDecode;
+                    if (++b4Posn == 4) {
+                        if (outBuffPosn + 3 > outBuffLimit) throw overflow(destLength);
+                        destination[outBuffPosn] = (byte) (quantum >> 16);
+                        destination[outBuffPosn + 1] = (byte) (quantum >> 8);
+                        destination[outBuffPosn + 2] = (byte) quantum;
+                        outBuffPosn += 3;
+                        quantum = 0;
+                        b4Posn = 0;
+                    }
+                }
+            } else {
+                throw new Base64DecoderException("Bad Base64 input character at " + i
+                        + ": " + source[i + off] + "(decimal)");
             }
-            b4[b4Posn++] = EQUALS_SIGN;
-            outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
+        }
+
+        int tail = checkTail(b4Posn, len);
+        if (outBuffPosn + tail > outBuffLimit) throw overflow(destLength);
+        switch (tail) {
+            case 1:
+                destination[outBuffPosn] = (byte) (quantum >> 4);
+                break;
+            case 2:
+                destination[outBuffPosn] = (byte) (quantum >> 10);
+                destination[outBuffPosn + 1] = (byte) (quantum >> 2);
+                break;
+        }
+        return outBuffPosn + tail - destOffset;
+    }
+
+    /**
+     * Decodes Base64 content from a range of characters using the supplied
+     * decodabet and returns the decoded byte array.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @param decodabet the decodabet for decoding Base64 content
+     * @return decoded data
+     */
+    public static byte[] decode(CharSequence source, int off, int len, byte[] decodabet)
+            throws Base64DecoderException {
+        int end = off + len;
+        while (end > off && decodabet(source.charAt(end - 1), decodabet) < 0
+                && decodabet(source.charAt(end - 1), decodabet) >= WHITE_SPACE_ENC) {
+            end--;
+        }
+        byte[] outBuff = new byte[maxDecodedLength(end - off)];
+        int outBuffPosn = decodeInto(source, off, len, outBuff, 0, decodabet);
+        if (outBuffPosn == outBuff.length) {
+            return outBuff;
         }
 
         byte[] out = new byte[outBuffPosn];
         System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
         return out;
     }
+
+    /**
+     * Decodes Base64 content from a range of characters into a caller-supplied
+     * array, without allocating. Characters outside of ASCII are rejected.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @param destination the array to hold the decoded data
+     * @param destOffset the index where output will be put
+     * @param decodabet the decodabet for decoding Base64 content
+     * @return the number of bytes written to destination
+     * @throws IndexOutOfBoundsException if destination is too small
+     */
+    public static int decodeInto(CharSequence source, int off, int len, byte[] destination,
+            int destOffset, byte[] decodabet) throws Base64DecoderException {
+        int outBuffPosn = destOffset;
+        int outBuffLimit = destination.length;
+        int destLength = outBuffLimit - destOffset;
+
+        int quantum = 0;
+        int b4Posn = 0;
+        for (int i = 0; i < len; i++) {
+            // Same eight-at-a-time fast path as the byte[] version
+            if (b4Posn == 0) {
+                while (i + 8 <= len) {
+                    int p = i + off;
+                    int c0 = decodabet(source.charAt(p), decodabet);
+                    int c1 = decodabet(source.charAt(p + 1), decodabet);
+                    int c2 = decodabet(source.charAt(p + 2), decodabet);
+                    int c3 = decodabet(source.charAt(p + 3), decodabet);
+                    int c4 = decodabet(source.charAt(p + 4), decodabet);
+                    int c5 = decodabet(source.charAt(p + 5), decodabet);
+                    int c6 = decodabet(source.charAt(p + 6), decodabet);
+                    int c7 = decodabet(source.charAt(p + 7), decodabet);
+                    if ((c0 | c1 | c2 | c3 | c4 | c5 | c6 | c7) < 0) break;
+                    if (outBuffPosn + 6 > outBuffLimit) throw overflow(destLength);
+
+                    long outBuff48 = ((long) c0 << 42) | ((long) c1 << 36) | ((long) c2 << 30)
+                            | ((long) c3 << 24) | (c4 << 18) | (c5 << 12) | (c6 << 6) | c7;
+                    destination[outBuffPosn] = (byte) (outBuff48 >>> 40);
+                    destination[outBuffPosn + 1] = (byte) (outBuff48 >>> 32);
+                    destination[outBuffPosn + 2] = (byte) (outBuff48 >>> 24);
+                    destination[outBuffPosn + 3] = (byte) (outBuff48 >>> 16);
+                    destination[outBuffPosn + 4] = (byte) (outBuff48 >>> 8);
+                    destination[outBuffPosn + 5] = (byte) outBuff48;
+                    outBuffPosn += 6;
+                    i += 8;
+                }
+                if (i == len) break;
+            }
+
+            char c = source.charAt(i + off);
+            byte sbiDecode = decodabet(c, decodabet);
+
+            if (sbiDecode >= WHITE_SPACE_ENC) { // White space Equals sign or better
+                if (sbiDecode >= EQUALS_SIGN_ENC) {
+                    if (c == EQUALS_SIGN) {
+                        char last = source.charAt(len - 1 + off);
+                        checkPadding(b4Posn, len - i, last < 0x80 ? (byte) last : 0, i);
+                        break;
+                    }
+
+                    quantum = (quantum << 6) | sbiDecode;
+                    if (++b4Posn == 4) {
+                        if (outBuffPosn + 3 > outBuffLimit) throw overflow(destLength);
+                        destination[outBuffPosn] = (byte) (quantum >> 16);
+                        destination[outBuffPosn + 1] = (byte) (quantum >> 8);
+                        destination[outBuffPosn + 2] = (byte) quantum;
+                        outBuffPosn += 3;
+                        quantum = 0;
+                        b4Posn = 0;
+                    }
+                }
+            } else {
+                throw new Base64DecoderException("Bad Base64 input character at " + i
+                        + ": " + (int) c + "(decimal)");
+            }
+        }
+
+        int tail = checkTail(b4Posn, len);
+        if (outBuffPosn + tail > outBuffLimit) throw overflow(destLength);
+        switch (tail) {
+            case 1:
+                destination[outBuffPosn] = (byte) (quantum >> 4);
+                break;
+            case 2:
+                destination[outBuffPosn] = (byte) (quantum >> 10);
+                destination[outBuffPosn + 1] = (byte) (quantum >> 2);
+                break;
+        }
+        return outBuffPosn + tail - destOffset;
+    }
+
+    // Looks up a character in the decodabet; anything outside ASCII is invalid
+    private static byte decodabet(char c, byte[] decodabet) {
+        return c < 0x80 ? decodabet[c] : -9;
+    }
+
+    // An equals sign (for padding) must not occur at position 0 or 1
+    // and must be the last byte[s] in the encoded value
+    private static void checkPadding(int b4Posn, int bytesLeft, byte lastByte, int i)
+            throws Base64DecoderException {
+        if (b4Posn == 0 || b4Posn == 1) {
+            throw new Base64DecoderException(
+                    "invalid padding byte '=' at byte offset " + i);
+        } else if ((b4Posn == 3 && bytesLeft > 2)
+                || (b4Posn == 4 && bytesLeft > 1)) {
+            throw new Base64DecoderException(
+                    "padding byte '=' falsely signals end of encoded value "
+                            + "at offset " + i);
+        } else if (lastByte != EQUALS_SIGN && lastByte != NEW_LINE) {
+            throw new Base64DecoderException(
+                    "encoded value has invalid trailing byte");
+        }
+    }
+
+    // Because web safe encoding allows non padding base64 encodes, the last
+    // quantum may be incomplete. It must have two or three characters, which
+    // decode to one or two bytes; this also covers input padded with EQUALS_SIGN.
+    // Returns the number of bytes the partial quantum decodes to.
+    private static int checkTail(int b4Posn, int len) throws Base64DecoderException {
+        if (b4Posn == 1) {
+            throw new Base64DecoderException("single trailing character at offset "
+                    + (len - 1));
+        }
+        return b4Posn == 0 ? 0 : b4Posn - 1;
+    }
+
+    private static IndexOutOfBoundsException overflow(int destLength) {
+        return new IndexOutOfBoundsException(
+                "destination too small for decoded data (" + destLength + " bytes)");
+    }
 }
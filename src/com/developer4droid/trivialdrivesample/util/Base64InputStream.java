@@ -0,0 +1,219 @@
+// Portions copyright 2002, Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.developer4droid.trivialdrivesample.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that decodes Base64 read from another stream, using the
+ * same decodabets as {@link Base64}. It accepts and rejects exactly the input
+ * {@link Base64#decode} does: whitespace is skipped, the padding may be left
+ * out, and anything after the first padding '=' is ignored as long as the
+ * input ends in '=' or a newline. Memory use is bounded by two small fixed
+ * buffers, whatever the size of the data.
+ *
+ * Malformed input is reported as an {@link IOException} whose cause is a
+ * {@link Base64DecoderException}.
+ */
+public class Base64InputStream extends FilterInputStream {
+    private static final int BUFFER_SIZE = 1024; // multiple of 4
+
+    private final byte[] mDecodabet;
+
+    // Encoded bytes read from the underlying stream
+    private final byte[] mEncoded = new byte[BUFFER_SIZE];
+
+    // Decoded bytes not yet returned to the caller
+    private final byte[] mDecoded = new byte[BUFFER_SIZE / 4 * 3 + 2];
+    private int mDecodedPos = 0;
+    private int mDecodedLimit = 0;
+
+    // The current quantum: its 6-bit values so far and how many there are
+    private int mQuantum = 0;
+    private int mB4Posn = 0;
+
+    private long mOffset = 0;       // position in the encoded input, for error messages
+    private boolean mPadded = false;  // whether a padding '=' has been seen
+    private long mPadOffset;          // offset of the first '='
+    private int mPadB4Posn;           // mB4Posn when the first '=' was seen
+    private long mPadBytesLeft;       // bytes from the first '=' to the end, inclusive
+    private byte mLastByte;           // low seven bits of the last byte read
+    private boolean mEof = false;
+
+    private final byte[] mSingle = new byte[1];
+
+    /**
+     * Creates a stream that decodes standard Base64 read from <var>in</var>.
+     */
+    public Base64InputStream(InputStream in) {
+        this(in, false);
+    }
+
+    /**
+     * Creates a stream that decodes Base64 read from <var>in</var>.
+     *
+     * @param in the stream to read the encoded data from
+     * @param webSafe whether the input uses the web safe alphabet ('-' and '_'
+     *        instead of '+' and '/')
+     */
+    public Base64InputStream(InputStream in, boolean webSafe) {
+        super(in);
+        mDecodabet = webSafe ? Base64.WEBSAFE_DECODABET : Base64.DECODABET;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(mSingle, 0, 1);
+        return n == -1 ? -1 : mSingle[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if ((off | len | (b.length - (off + len))) < 0) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+        while (mDecodedPos == mDecodedLimit) {
+            if (mEof) return -1;
+            fill();
+        }
+        int n = Math.min(len, mDecodedLimit - mDecodedPos);
+        System.arraycopy(mDecoded, mDecodedPos, b, off, n);
+        mDecodedPos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (mDecodedPos == mDecodedLimit) {
+                if (mEof) break;
+                fill();
+                continue;
+            }
+            int step = (int) Math.min(n - skipped, mDecodedLimit - mDecodedPos);
+            mDecodedPos += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    /** Returns the number of decoded bytes that can be read without blocking. */
+    @Override
+    public int available() throws IOException {
+        return mDecodedLimit - mDecodedPos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) { }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    // Reads one buffer of encoded input and decodes it into mDecoded
+    private void fill() throws IOException {
+        mDecodedPos = 0;
+        mDecodedLimit = 0;
+        int len = in.read(mEncoded, 0, mEncoded.length);
+        if (len == -1) {
+            finish();
+            return;
+        }
+
+        if (len == 0) return;
+        mLastByte = (byte) (mEncoded[len - 1] & 0x7f);
+        if (mPadded) {
+            // like Base64.decode, ignore the rest and check only how it ends
+            mOffset += len;
+            mPadBytesLeft += len;
+            return;
+        }
+
+        for (int i = 0; i < len; i++, mOffset++) {
+            byte sbiCrop = (byte) (mEncoded[i] & 0x7f); // Only the low seven bits
+            byte sbiDecode = mDecodabet[sbiCrop];
+
+            if (sbiDecode < Base64.WHITE_SPACE_ENC) {
+                throw error("Bad Base64 input character at " + mOffset
+                        + ": " + mEncoded[i] + "(decimal)");
+            }
+            if (sbiDecode < Base64.EQUALS_SIGN_ENC) {
+                continue; // whitespace
+            }
+            if (sbiCrop == Base64.EQUALS_SIGN) {
+                // An equals sign (for padding) must not occur at position 0 or 1
+                if (mB4Posn == 0 || mB4Posn == 1) {
+                    throw error("invalid padding byte '=' at byte offset " + mOffset);
+                }
+                mPadded = true;
+                mPadOffset = mOffset;
+                mPadB4Posn = mB4Posn;
+                mPadBytesLeft = len - i;
+                mOffset += len - i;
+                return;
+            }
+
+            mQuantum = (mQuantum << 6) | sbiDecode;
+            if (++mB4Posn == 4) {
+                mDecoded[mDecodedLimit++] = (byte) (mQuantum >> 16);
+                mDecoded[mDecodedLimit++] = (byte) (mQuantum >> 8);
+                mDecoded[mDecodedLimit++] = (byte) mQuantum;
+                mQuantum = 0;
+                mB4Posn = 0;
+            }
+        }
+    }
+
+    // Decodes the incomplete quantum at the end of the input, if any
+    private void finish() throws IOException {
+        mEof = true;
+        if (mPadded) {
+            // the checks Base64.decode makes once it meets the first '='
+            if (mPadB4Posn == 3 && mPadBytesLeft > 2) {
+                throw error("padding byte '=' falsely signals end of encoded value "
+                        + "at offset " + mPadOffset);
+            }
+            if (mLastByte != Base64.EQUALS_SIGN && mLastByte != Base64.NEW_LINE) {
+                throw error("encoded value has invalid trailing byte");
+            }
+        }
+        switch (mB4Posn) {
+            case 1:
+                throw error("single trailing character at offset " + (mOffset - 1));
+            case 2:
+                mDecoded[mDecodedLimit++] = (byte) (mQuantum >> 4);
+                break;
+            case 3:
+                mDecoded[mDecodedLimit++] = (byte) (mQuantum >> 10);
+                mDecoded[mDecodedLimit++] = (byte) (mQuantum >> 2);
+                break;
+        }
+        mB4Posn = 0;
+    }
+
+    private static IOException error(String message) {
+        IOException e = new IOException(message);
+        e.initCause(new Base64DecoderException(message));
+        return e;
+    }
+}
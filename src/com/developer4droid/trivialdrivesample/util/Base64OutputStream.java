@@ -0,0 +1,139 @@
+// Portions copyright 2002, Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.developer4droid.trivialdrivesample.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that Base64-encodes everything written to it, using the
+ * same alphabets as {@link Base64}. Memory use is bounded by a small fixed
+ * buffer, whatever the size of the data. The output is not wrapped into lines.
+ *
+ * The last one or two bytes of the input can only be encoded once the end of
+ * the data is known, so you must call {@link #close} to get complete output;
+ * {@link #flush} writes out every complete quantum but keeps the remainder.
+ */
+public class Base64OutputStream extends FilterOutputStream {
+    private static final int BUFFER_SIZE = 1024; // multiple of 4
+
+    private final byte[] mAlphabet;
+    private final boolean mDoPadding;
+
+    // Source bytes of an incomplete quantum
+    private final byte[] mPending = new byte[3];
+    private int mPendingCount = 0;
+
+    // Encoded bytes not yet written to the underlying stream
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mBufferCount = 0;
+
+    private boolean mClosed = false;
+
+    /**
+     * Creates a stream that writes standard, padded Base64 to <var>out</var>.
+     */
+    public Base64OutputStream(OutputStream out) {
+        this(out, false, true);
+    }
+
+    /**
+     * Creates a stream that writes Base64 to <var>out</var>.
+     *
+     * @param out the stream to write the encoded data to
+     * @param webSafe whether to use the web safe alphabet ('-' and '_' instead of '+' and '/')
+     * @param doPadding is {@code true} to pad the output with '=' chars
+     *        if it does not fall on 3 byte boundaries
+     */
+    public Base64OutputStream(OutputStream out, boolean webSafe, boolean doPadding) {
+        super(out);
+        mAlphabet = webSafe ? Base64.WEBSAFE_ALPHABET : Base64.ALPHABET;
+        mDoPadding = doPadding;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mClosed) throw new IOException("Stream closed");
+        mPending[mPendingCount++] = (byte) b;
+        if (mPendingCount == 3) {
+            encodeQuantum(mPending, 0);
+            mPendingCount = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mClosed) throw new IOException("Stream closed");
+        if ((off | len | (b.length - (off + len))) < 0) throw new IndexOutOfBoundsException();
+
+        // Complete a quantum left over from the last call
+        while (mPendingCount > 0 && len > 0) {
+            write(b[off++]);
+            len--;
+        }
+        for (; len >= 3; off += 3, len -= 3) {
+            encodeQuantum(b, off);
+        }
+        while (len-- > 0) {
+            mPending[mPendingCount++] = b[off++];
+        }
+    }
+
+    /**
+     * Writes out all complete quanta and flushes the underlying stream.
+     * Up to two trailing bytes stay buffered until {@link #close}.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Encodes the remaining bytes, with padding if requested, and closes the
+     * underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            if (mPendingCount > 0) {
+                if (mBufferCount + 4 > mBuffer.length) flushBuffer();
+                Base64.encode3to4(mPending, 0, mPendingCount, mBuffer, mBufferCount, mAlphabet);
+                // an n-byte remainder encodes to n + 1 characters before padding
+                mBufferCount += mDoPadding ? 4 : mPendingCount + 1;
+                mPendingCount = 0;
+            }
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void encodeQuantum(byte[] source, int off) throws IOException {
+        if (mBufferCount + 4 > mBuffer.length) flushBuffer();
+        Base64.encode3to4(source, off, 3, mBuffer, mBufferCount, mAlphabet);
+        mBufferCount += 4;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBufferCount > 0) {
+            out.write(mBuffer, 0, mBufferCount);
+            mBufferCount = 0;
+        }
+    }
+}
@@ -25,6 +25,8 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
 import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
@@ -33,8 +35,26 @@ import com.android.vending.billing.IInAppBillingService;
 
 import org.json.JSONException;
 
+import java.io.File;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -62,9 +82,10 @@ import java.util.List;
  * A note about threading: When using this object from a background thread, you may
  * call the blocking versions of methods; when using from a UI thread, call
  * only the asynchronous versions and handle the results via callbacks.
- * Also, notice that you can only call one asynchronous operation at a time;
- * attempting to start a second asynchronous operation while the first one
- * has not yet completed will result in an exception being thrown.
+ * Asynchronous operations may be started while others are in progress: they
+ * are queued, and each starts once nothing it conflicts with is running. Only
+ * one purchase flow runs at a time, and inventory refreshes do not overlap
+ * consumptions; see {@link #launchPurchaseFlow} and {@link #queryInventoryAsync}.
  *
  * @author Bruno Oliveira (Google)
  *
@@ -77,6 +98,14 @@ public class IabHelper {
 	public static final String SKU_DIAMOND_MONTH = "diamond_month_1";
 	public static final String SKU_DIAMOND_YEAR = "diamond_year_1";
 
+	// Ids of the products above, for the Inventory methods that take an id
+	public static final int SKU_ID_GOLD_MONTH = SkuRegistry.register(SKU_GOLD_MONTH);
+	public static final int SKU_ID_GOLD_YEAR = SkuRegistry.register(SKU_GOLD_YEAR);
+	public static final int SKU_ID_PLATINUM_MONTH = SkuRegistry.register(SKU_PLATINUM_MONTH);
+	public static final int SKU_ID_PLATINUM_YEAR = SkuRegistry.register(SKU_PLATINUM_YEAR);
+	public static final int SKU_ID_DIAMOND_MONTH = SkuRegistry.register(SKU_DIAMOND_MONTH);
+	public static final int SKU_ID_DIAMOND_YEAR = SkuRegistry.register(SKU_DIAMOND_YEAR);
+
     // Is debug logging enabled?
     boolean mDebugLog = false;
     String mDebugTag = "IabHelper";
@@ -87,14 +116,6 @@ public class IabHelper {
     // Are subscriptions supported?
     boolean mSubscriptionsSupported = false; 
     
-    // Is an asynchronous operation in progress?
-    // (only one at a time can be in progress)
-    boolean mAsyncInProgress = false;
-
-    // (for logging/debugging)
-    // if mAsyncInProgress == true, what asynchronous operation is in progress?
-    String mAsyncOperation = "";
-
     // Context we were passed during initialization
     Context mContext;
 
@@ -111,6 +132,58 @@ public class IabHelper {
     // Public key for verifying signature, in base64 encoding
     String mSignatureBase64 = null;
 
+    // Verifier for purchase signatures (created from mSignatureBase64 if not given)
+    SignatureVerifier mSignatureVerifier = null;
+
+    // What to do with a purchase's JSON once its signature is verified (JSON_* below)
+    volatile int mPurchaseJsonRetention = JSON_RETAIN;
+
+    // Query products and subscriptions at the same time in queryInventory?
+    volatile boolean mPipelinedQueries = false;
+
+    // Verify each page of purchases while fetching the next?
+    volatile boolean mPipelinedPages = false;
+
+    // Pages of purchases that may wait for verification while more are fetched
+    static final int MAX_PAGES_IN_FLIGHT = 2;
+
+    // Canonical item types, package names and product IDs shared by queried purchases
+    static final int MAX_POOLED_STRINGS = 1024;
+    final StringPool mStringPool = new StringPool(MAX_POOLED_STRINGS);
+
+    // The latest inventory, replaced by each query and updated after purchases and consumptions
+    final AtomicReference<Inventory> mInventory = new AtomicReference<Inventory>();
+
+    // Listeners for changes to mInventory, called on the main thread
+    final List<OnInventoryChangedListener> mInventoryListeners =
+            new CopyOnWriteArrayList<OnInventoryChangedListener>();
+    final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Where the latest inventory is persisted; null unless enabled
+    volatile InventoryCache mInventoryCache = null;
+
+    // Whether a write of mInventory to mInventoryCache is queued but not started
+    final AtomicBoolean mCacheSavePending = new AtomicBoolean();
+
+    // Runs the blocking service calls of the asynchronous operations; created
+    // on first use unless set with setExecutor(). Guarded by "this".
+    ExecutorService mExecutor = null;
+    boolean mOwnsExecutor = false;
+    boolean mDisposed = false;  // no executor is handed out once set
+
+    // Queues the asynchronous operations and starts them when they don't conflict
+    final OperationScheduler mScheduler = new OperationScheduler(mMainHandler, new Executor() {
+        public void execute(Runnable r) {
+            getExecutor().execute(r);
+        }
+    });
+
+    // The purchase flow waiting for its activity result, if any
+    OperationScheduler.Operation mPurchaseOperation = null;
+
+    // Number of threads in the default executor
+    static final int EXECUTOR_THREADS = 2;
+
     // Billing response codes
     public static final int BILLING_RESPONSE_RESULT_OK = 0;
     public static final int BILLING_RESPONSE_RESULT_USER_CANCELED = 1;
@@ -149,6 +222,11 @@ public class IabHelper {
     public static final String ITEM_TYPE_INAPP = "inapp";
     public static final String ITEM_TYPE_SUBS = "subs";
 
+    // What to keep of a purchase's JSON after verification; see setPurchaseJsonRetention
+    public static final int JSON_RETAIN = 0;
+    public static final int JSON_COMPRESS = 1;
+    public static final int JSON_DROP = 2;
+
     // some fields on the getSkuDetails response bundle
     public static final String GET_SKU_DETAILS_ITEM_LIST = "ITEM_ID_LIST";
     public static final String GET_SKU_DETAILS_ITEM_TYPE_LIST = "ITEM_TYPE_LIST";
@@ -169,6 +247,21 @@ public class IabHelper {
         mSignatureBase64 = base64PublicKey;
         logDebug("IAB helper created.");
     }
+
+    /**
+     * Creates an instance that verifies purchase signatures with the given verifier,
+     * for example a {@link SignatureKeySet} holding the current and previous keys
+     * while your app's key is being rotated. Otherwise the same as
+     * {@link #IabHelper(Context, String)}.
+     *
+     * @param ctx Your application or Activity context. Needed to bind to the in-app billing service.
+     * @param verifier The verifier for purchase signatures.
+     */
+    public IabHelper(Context ctx, SignatureVerifier verifier) {
+        mContext = ctx.getApplicationContext();
+        mSignatureVerifier = verifier;
+        logDebug("IAB helper created.");
+    }
     
     /**
      * Enables or disable debug logging through LogCat.
@@ -182,6 +275,116 @@ public class IabHelper {
         mDebugLog = enable;
     }
 
+    /**
+     * Sets the executor that runs the blocking calls of the asynchronous
+     * operations, such as {@link #queryInventoryAsync}. The helper does not
+     * shut it down. By default the helper uses a pool of
+     * {@value #EXECUTOR_THREADS} background-priority threads of its own, which
+     * {@link #dispose} shuts down. Only its thread count is bounded: work
+     * waits in an unbounded queue, since the asynchronous methods are called
+     * on the UI thread and must never run the blocking calls there themselves.
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+        if (executor == null) throw new IllegalArgumentException("executor is null");
+        replaceExecutor(executor, false);
+    }
+
+    /**
+     * Runs the asynchronous operations on virtual threads, one per operation,
+     * when the JVM supports them (Java 21 and later, so not on Android).
+     *
+     * @return whether virtual threads are now in use
+     */
+    public synchronized boolean enableVirtualThreads() {
+        if (mDisposed) return false;
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            replaceExecutor((ExecutorService) m.invoke(null), true);
+            logDebug("Using virtual threads.");
+            return true;
+        }
+        catch (Exception e) {
+            logDebug("Virtual threads are not available: " + e);
+            return false;
+        }
+    }
+
+    // Switches to a new executor, letting an old one of ours finish its work
+    private void replaceExecutor(ExecutorService executor, boolean owned) {
+        if (mOwnsExecutor && mExecutor != null) mExecutor.shutdown();
+        mExecutor = executor;
+        mOwnsExecutor = owned;
+    }
+
+    // Returns the executor for asynchronous operations, creating the default one if needed.
+    // Once the helper is disposed of, throws RejectedExecutionException instead, so
+    // that late work is dropped or run by its caller rather than starting a new pool.
+    synchronized ExecutorService getExecutor() {
+        if (mDisposed) throw new RejectedExecutionException("IAB helper was disposed of");
+        if (mExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(EXECUTOR_THREADS, EXECUTOR_THREADS,
+                    0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+                        public Thread newThread(final Runnable r) {
+                            Thread t = new Thread(new Runnable() {
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "IabHelper-" + mCount.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            replaceExecutor(executor, true);
+        }
+        return mExecutor;
+    }
+
+    /**
+     * Sets what is kept of each purchase's JSON once its signature has been
+     * verified during {@link #queryInventory}. With many purchases the JSON is
+     * most of their memory use. All of a purchase's fields are decoded first,
+     * so only {@link Purchase#getOriginalJson} is affected.
+     *
+     * @param retention {@link #JSON_RETAIN} (the default) to keep it as is,
+     *     {@link #JSON_COMPRESS} to keep it deflated and expand it on demand, or
+     *     {@link #JSON_DROP} to discard it, in which case getOriginalJson() returns null.
+     */
+    public void setPurchaseJsonRetention(int retention) {
+        if (retention < JSON_RETAIN || retention > JSON_DROP) {
+            throw new IllegalArgumentException("Unknown JSON retention: " + retention);
+        }
+        mPurchaseJsonRetention = retention;
+    }
+
+    /**
+     * Makes {@link #queryInventory} query owned subscriptions and their details
+     * at the same time as products, on the executor, instead of one after the
+     * other (if subscriptions are supported). A refresh then takes about as
+     * long as the slower of the two. See also {@link #setPipelinedPages}.
+     *
+     * @param pipelined whether to query the two item types in parallel
+     */
+    public void setPipelinedQueries(boolean pipelined) {
+        mPipelinedQueries = pipelined;
+    }
+
+    /**
+     * Makes {@link #queryInventory} verify each page of owned items while the
+     * next page is being fetched, when they come in several pages, instead of
+     * one after the other. Fetching all the pages then takes about as long as
+     * the slower of fetching and verifying. The pages are verified on the
+     * pool that {@link Security#verifyAll} uses, not on the executor, so this
+     * works whatever the executor is busy with. This is independent of
+     * {@link #setPipelinedQueries}.
+     *
+     * @param pipelined whether to verify pages while fetching the next
+     */
+    public void setPipelinedPages(boolean pipelined) {
+        mPipelinedPages = pipelined;
+    }
+
     /**
      * Callback for setup process. This listener's {@link #onIabSetupFinished} method is called
      * when the setup process is complete.
@@ -281,11 +484,23 @@ public class IabHelper {
      * Dispose of object, releasing resources. It's very important to call this
      * method when you are done with this object. It will release any resources
      * used by it such as service connections. Naturally, once the object is
-     * disposed of, it can't be used again.
+     * disposed of, it can't be used again. Asynchronous operations still queued
+     * are dropped, and their listeners are called with {@link #IABHELPER_UNKNOWN_ERROR}.
      */
     public void dispose() {
         logDebug("Disposing.");
         mSetupDone = false;
+        for (OperationScheduler.Operation op : mScheduler.clear()) {
+            logDebug("Dropping queued operation: " + op);
+            op.rejected();
+        }
+        synchronized (this) {
+            // operations already queued still finish; their results are discarded
+            if (mOwnsExecutor && mExecutor != null) mExecutor.shutdown();
+            mExecutor = null;
+            mOwnsExecutor = false;
+            mDisposed = true;
+        }
         if (mServiceConn != null) {
             logDebug("Unbinding from service.");
             if (mContext != null) mContext.unbindService(mServiceConn);
@@ -348,6 +563,13 @@ public class IabHelper {
      * this object's {@link #handleActivityResult} method to continue the purchase flow. This method
      * MUST be called from the UI thread of the Activity.
      *
+     * Only one purchase flow runs at a time. If another one is waiting for its activity
+     * result, this one is queued and launched once that result has been handled. So if
+     * a result is never passed to {@link #handleActivityResult}, every later purchase
+     * flow waits, without any error, until {@link #dispose} drops it; earlier versions
+     * threw an IllegalStateException from the next call instead. Queued flows that are
+     * dropped report {@link #IABHELPER_UNKNOWN_ERROR} to their listeners.
+     *
      * @param act The calling activity.
      * @param sku The sku of the item to purchase.
      * @param itemType indicates if it's a product or a subscription (ITEM_TYPE_INAPP or ITEM_TYPE_SUBS)
@@ -358,15 +580,40 @@ public class IabHelper {
      *     when the purchase completes. This extra data will be permanently bound to that purchase
      *     and will always be returned when the purchase is queried.
      */
-    public void launchPurchaseFlow(Activity act, String sku, String itemType, int requestCode,
-                        OnIabPurchaseFinishedListener listener, String extraData) {
+    public void launchPurchaseFlow(final Activity act, final String sku, final String itemType,
+                        final int requestCode, final OnIabPurchaseFinishedListener listener,
+                        final String extraData) {
         checkSetupDone("launchPurchaseFlow");
-        flagStartAsync("launchPurchaseFlow");
+        schedule(new OperationScheduler.Operation(OperationScheduler.PURCHASE, sku) {
+            public void run() {
+                startPurchaseFlow(this, act, sku, itemType, requestCode, listener, extraData);
+            }
+
+            @Override
+            void rejected() {
+                logDebug("Async operation rejected: " + this);
+                if (listener == null) return;
+                final IabResult result = new IabResult(IABHELPER_UNKNOWN_ERROR,
+                        "Purchase flow for sku " + sku + " dropped: the helper was disposed of.");
+                mMainHandler.post(new Runnable() {
+                    public void run() {
+                        listener.onIabPurchaseFinished(result, null);
+                    }
+                });
+            }
+        });
+    }
+
+    // Runs on the main thread once no other purchase flow is in progress. Unless the
+    // buy intent is launched, the operation ends here; otherwise handleActivityResult ends it.
+    void startPurchaseFlow(OperationScheduler.Operation op, Activity act, String sku, String itemType,
+                        int requestCode, OnIabPurchaseFinishedListener listener, String extraData) {
         IabResult result;
-        
+
         if (itemType.equals(ITEM_TYPE_SUBS) && !mSubscriptionsSupported) {
             IabResult r = new IabResult(IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE, 
                     "Subscriptions are not available.");
+            finishOperation(op);
             if (listener != null) listener.onIabPurchaseFinished(r, null);
             return;
         }
@@ -379,6 +626,7 @@ public class IabHelper {
                 logError("Unable to buy item, Error response: " + getResponseDesc(response));
 
                 result = new IabResult(response, "Unable to buy item");
+                finishOperation(op);
                 if (listener != null) listener.onIabPurchaseFinished(result, null);
                 return;
             }
@@ -388,6 +636,7 @@ public class IabHelper {
             mRequestCode = requestCode;
             mPurchaseListener = listener;
             mPurchasingItemType = itemType;
+            mPurchaseOperation = op;
             act.startIntentSenderForResult(pendingIntent.getIntentSender(),
                                            requestCode, new Intent(),
                                            Integer.valueOf(0), Integer.valueOf(0),
@@ -398,6 +647,7 @@ public class IabHelper {
             e.printStackTrace();
 
             result = new IabResult(IABHELPER_SEND_INTENT_FAILED, "Failed to send intent.");
+            endPurchaseFlow();
             if (listener != null) listener.onIabPurchaseFinished(result, null);
         }
         catch (RemoteException e) {
@@ -405,6 +655,7 @@ public class IabHelper {
             e.printStackTrace();
 
             result = new IabResult(IABHELPER_REMOTE_EXCEPTION, "Remote exception while starting purchase flow");
+            finishOperation(op);
             if (listener != null) listener.onIabPurchaseFinished(result, null);
         }
     }
@@ -423,19 +674,30 @@ public class IabHelper {
      *     handle it normally.
      */
     public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
-        IabResult result;
         if (requestCode != mRequestCode) return false;
 
         checkSetupDone("handleActivityResult");
 
-        // end of async purchase operation
-        flagEndAsync();
+        try {
+            deliverPurchaseResult(resultCode, data);
+        }
+        finally {
+            // end of async purchase operation. Only now that the listener has its
+            // result: this may start the next queued purchase flow, which replaces
+            // mPurchaseListener and mPurchasingItemType.
+            endPurchaseFlow();
+        }
+        return true;
+    }
 
+    // Verifies the result of the purchase flow in progress and tells its listener
+    private void deliverPurchaseResult(int resultCode, Intent data) {
+        IabResult result;
         if (data == null) {
             logError("Null data in IAB activity result.");
             result = new IabResult(IABHELPER_BAD_RESPONSE, "Null data in IAB result");
             if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
-            return true;
+            return;
         }
 
         int responseCode = getResponseCodeFromIntent(data);
@@ -454,7 +716,7 @@ public class IabHelper {
                 logDebug("Extras: " + data.getExtras().toString());
                 result = new IabResult(IABHELPER_UNKNOWN_ERROR, "IAB returned null purchaseData or dataSignature");
                 if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
-                return true;
+                return;
             }
 
             Purchase purchase = null;
@@ -463,20 +725,21 @@ public class IabHelper {
                 String sku = purchase.getSku();
 
                 // Verify signature
-                if (!Security.verifyPurchase(mSignatureBase64, purchaseData, dataSignature)) {
+                if (!Security.verifyPurchase(getSignatureVerifier(), purchaseData, dataSignature)) {
                     logError("Purchase signature verification FAILED for sku " + sku);
                     result = new IabResult(IABHELPER_VERIFICATION_FAILED, "Signature verification failed for sku " + sku);
                     if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, purchase);
-                    return true;
+                    return;
                 }
                 logDebug("Purchase signature successfully verified.");
+                addPurchasedItem(purchase);
             }
             catch (JSONException e) {
                 logError("Failed to parse purchase data.");
                 e.printStackTrace();
                 result = new IabResult(IABHELPER_BAD_RESPONSE, "Failed to parse purchase data.");
                 if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
-                return true;
+                return;
             }
 
             if (mPurchaseListener != null) {
@@ -502,7 +765,165 @@ public class IabHelper {
             result = new IabResult(IABHELPER_UNKNOWN_PURCHASE_RESPONSE, "Unknown purchase response.");
             if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
         }
-        return true;
+    }
+
+    // Adds a verified new purchase to the published inventory, if there is one
+    private void addPurchasedItem(Purchase purchase) {
+        while (true) {
+            Inventory current = mInventory.get();
+            if (current == null) return;
+            Inventory next = current.withPurchase(purchase);
+            if (mInventory.compareAndSet(current, next)) {
+                inventoryChanged(current, next);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Listener that is told what has changed whenever the inventory returned by
+     * {@link #getInventory} is replaced.
+     */
+    public interface OnInventoryChangedListener {
+        /**
+         * Called on the main thread when the inventory has changed.
+         *
+         * @param diff What has changed; never empty.
+         * @param inv The new inventory.
+         */
+        public void onInventoryChanged(InventoryDiff diff, Inventory inv);
+    }
+
+    /**
+     * Registers a listener to be told about changes to the inventory, as
+     * deltas from the previous one. The first query reports everything as added.
+     */
+    public void addOnInventoryChangedListener(OnInventoryChangedListener listener) {
+        mInventoryListeners.add(listener);
+    }
+
+    public void removeOnInventoryChangedListener(OnInventoryChangedListener listener) {
+        mInventoryListeners.remove(listener);
+    }
+
+    /**
+     * Listener for the inventory read by {@link #enableInventoryCacheAsync}.
+     */
+    public interface OnInventoryCacheLoadedListener {
+        /**
+         * Called when the cache file has been read.
+         *
+         * @param cached The cached inventory, or null if there is none or a
+         *     query has already published a newer one.
+         */
+        public void onInventoryCacheLoaded(Inventory cached);
+    }
+
+    /**
+     * Keeps the inventory in <var>file</var> from now on, so that it is
+     * available straight away the next time the app starts, and returns what
+     * the file held from last time. The purchases read from the file are
+     * verified again. The returned inventory is also published through
+     * {@link #getInventory} until the first query replaces it; listeners are
+     * then told only what has changed since. This method may be called before
+     * {@link #startSetup}. It reads the file and verifies its signatures, so
+     * it blocks; do not call it from a UI thread. For that, use
+     * {@link #enableInventoryCacheAsync}.
+     *
+     * @param file The file to keep the inventory in, typically in the app's files directory.
+     * @return The cached inventory, or null if there is none or a query has
+     *     already published a newer one.
+     */
+    public Inventory enableInventoryCache(File file) {
+        InventoryCache cache = new InventoryCache(file);
+        Inventory cached = cache.load(getSignatureVerifier());
+        mInventoryCache = cache;
+        if (cached != null) {
+            logDebug("Loaded cached inventory: " + cached.purchasesView().size() + " purchases.");
+            if (mInventory.compareAndSet(null, cached)) return cached;
+        }
+        // a query may have finished first; keep the file up to date with it
+        if (mInventory.get() != null) saveInventory(cache);
+        return null;
+    }
+
+    /**
+     * Asynchronous wrapper for {@link #enableInventoryCache}. Reads the file
+     * in the background and calls back the specified listener with its
+     * inventory, on the calling thread. This method is safe to call from a UI
+     * thread. Inventories published before the file has been read are not
+     * written to it until then.
+     *
+     * @param file The file to keep the inventory in, typically in the app's files directory.
+     * @param listener The listener to notify when the file has been read.
+     * @throws IllegalStateException if the helper has been disposed of.
+     */
+    public void enableInventoryCacheAsync(final File file, final OnInventoryCacheLoadedListener listener) {
+        final Handler handler = new Handler();
+        Runnable load = new Runnable() {
+            public void run() {
+                final Inventory cached = enableInventoryCache(file);
+                handler.post(new Runnable() {
+                    public void run() {
+                        listener.onInventoryCacheLoaded(cached);
+                    }
+                });
+            }
+        };
+        try {
+            getExecutor().execute(load);
+        }
+        catch (RejectedExecutionException e) {
+            throw new IllegalStateException("IAB helper was disposed of. Can't load the inventory cache.");
+        }
+    }
+
+    // Persists the latest inventory and tells the listeners, on the main thread,
+    // what changed between two published inventories
+    private void inventoryChanged(Inventory previous, final Inventory current) {
+        InventoryCache cache = mInventoryCache;
+        if (mInventoryListeners.isEmpty() && cache == null) return;
+        final InventoryDiff diff = current.diff(previous);
+        if (diff.isEmpty()) return;
+        logDebug("Inventory changed: " + diff);
+
+        if (cache != null) saveInventory(cache);
+        if (mInventoryListeners.isEmpty()) return;
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                for (OnInventoryChangedListener listener : mInventoryListeners) {
+                    listener.onInventoryChanged(diff, current);
+                }
+            }
+        });
+    }
+
+    // Writes the latest inventory to the cache file in the background. Changes
+    // made before the write starts are all saved by the same write.
+    private void saveInventory(final InventoryCache cache) {
+        if (!mCacheSavePending.compareAndSet(false, true)) return;
+        try {
+            getExecutor().execute(new Runnable() {
+                public void run() {
+                    mCacheSavePending.set(false);
+                    cache.save(mInventory.get());
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            mCacheSavePending.set(false);
+            logDebug("Helper disposed of; not saving the inventory cache.");
+        }
+    }
+
+    /**
+     * Returns the latest inventory: the result of the last successful
+     * {@link #queryInventory}, updated with the purchases and consumptions
+     * made through this helper since. Returns null until an inventory has been
+     * queried. This method does not block and is safe to call from any thread.
+     */
+    public Inventory getInventory() {
+        return mInventory.get();
     }
 
     public Inventory queryInventory(boolean querySkuDetails, List<String> moreSkus) throws IabException {
@@ -525,36 +946,46 @@ public class IabHelper {
     public Inventory queryInventory(boolean querySkuDetails, List<String> moreItemSkus, 
                                         List<String> moreSubsSkus) throws IabException {
         checkSetupDone("queryInventory");
+        Inventory before = mInventory.get();
         try {
-            Inventory inv = new Inventory();
-            int r = queryPurchases(inv, ITEM_TYPE_INAPP);
-            if (r != BILLING_RESPONSE_RESULT_OK) {
-                throw new IabException(r, "Error refreshing inventory (querying owned items).");
+            Inventory.Builder inv = new Inventory.Builder();
+            if (mSubscriptionsSupported && mPipelinedQueries) {
+                // the subscriptions go into their own builder on the executor; if no
+                // thread takes them by the time the products are done, we run them here
+                FutureTask<Inventory.Builder> subs = queryItemTypeTask(ITEM_TYPE_SUBS, querySkuDetails, moreItemSkus);
+                try {
+                    getExecutor().execute(subs);
+                }
+                catch (RejectedExecutionException e) {
+                    logDebug("Executor is shut down or disposed of; querying subscriptions after products.");
+                }
+                try {
+                    queryItemType(inv, ITEM_TYPE_INAPP, querySkuDetails, moreItemSkus);
+                    subs.run();
+                    inv.addAll(awaitQuery(subs));
+                }
+                finally {
+                    subs.cancel(false);
+                }
             }
+            else {
+                queryItemType(inv, ITEM_TYPE_INAPP, querySkuDetails, moreItemSkus);
 
-            if (querySkuDetails) {
-                r = querySkuDetails(ITEM_TYPE_INAPP, inv, moreItemSkus);
-                if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new IabException(r, "Error refreshing inventory (querying prices of items).");
+                // if subscriptions are supported, then also query for subscriptions
+                if (mSubscriptionsSupported) {
+                    queryItemType(inv, ITEM_TYPE_SUBS, querySkuDetails, moreItemSkus);
                 }
             }
-            
-            // if subscriptions are supported, then also query for subscriptions
-            if (mSubscriptionsSupported) {
-                r = queryPurchases(inv, ITEM_TYPE_SUBS);
-                if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new IabException(r, "Error refreshing inventory (querying owned subscriptions).");
+
+            Inventory queried = inv.build();
+            while (true) {
+                Inventory current = mInventory.get();
+                Inventory inventory = keepNewPurchases(queried, before, current);
+                if (mInventory.compareAndSet(current, inventory)) {
+                    inventoryChanged(current, inventory);
+                    return inventory;
                 }
-                
-                if (querySkuDetails) {
-                    r = querySkuDetails(ITEM_TYPE_SUBS, inv, moreItemSkus);
-                    if (r != BILLING_RESPONSE_RESULT_OK) {
-                        throw new IabException(r, "Error refreshing inventory (querying prices of subscriptions).");
-                    }
-                }                
             }
-            
-            return inv;
         }
         catch (RemoteException e) {
             throw new IabException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while refreshing inventory.", e);
@@ -564,6 +995,23 @@ public class IabHelper {
         }
     }
 
+    // A purchase flow may run alongside a query and add its purchase to the published
+    // inventory after the billing service answered the query; such purchases are kept.
+    // With nothing published when the query started, the only change can be a cached
+    // inventory appearing, which the query replaces as a whole.
+    static Inventory keepNewPurchases(Inventory queried, Inventory before, Inventory current) {
+        if (before == null || current == before) return queried;
+        Inventory.Builder inv = null;
+        for (Purchase p : current.purchasesView()) {
+            Purchase old = before.getPurchase(p.getSku());
+            if (old != null && old.getToken().equals(p.getToken())) continue;
+            if (queried.hasPurchase(p.getSku())) continue;
+            if (inv == null) inv = new Inventory.Builder(queried);
+            inv.addPurchase(p);
+        }
+        return inv == null ? queried : inv.build();
+    }
+
     /**
      * Listener that notifies when an inventory query operation completes.
      */
@@ -578,12 +1026,75 @@ public class IabHelper {
     }
 
 
+    // Queries the purchases of one item type and, if asked, their details
+    void queryItemType(Inventory.Builder inv, String itemType, boolean querySkuDetails,
+                       List<String> moreSkus) throws IabException, RemoteException, JSONException {
+        boolean subs = itemType.equals(ITEM_TYPE_SUBS);
+        int r = queryPurchases(inv, itemType);
+        if (r != BILLING_RESPONSE_RESULT_OK) {
+            throw new IabException(r, subs ? "Error refreshing inventory (querying owned subscriptions)."
+                    : "Error refreshing inventory (querying owned items).");
+        }
+
+        if (querySkuDetails) {
+            r = querySkuDetails(itemType, inv, moreSkus);
+            if (r != BILLING_RESPONSE_RESULT_OK) {
+                throw new IabException(r, subs ? "Error refreshing inventory (querying prices of subscriptions)."
+                        : "Error refreshing inventory (querying prices of items).");
+            }
+        }
+    }
+
+    // Wraps queryItemType in a task that fills a builder of its own
+    FutureTask<Inventory.Builder> queryItemTypeTask(final String itemType, final boolean querySkuDetails,
+                                                    final List<String> moreSkus) {
+        return new FutureTask<Inventory.Builder>(new Callable<Inventory.Builder>() {
+            public Inventory.Builder call() throws Exception {
+                Inventory.Builder inv = new Inventory.Builder();
+                queryItemType(inv, itemType, querySkuDetails, moreSkus);
+                return inv;
+            }
+        });
+    }
+
+    // Waits for a task from queryItemTypeTask or purchasePageTask, rethrowing what it threw
+    static <T> T awaitQuery(FutureTask<T> task)
+            throws IabException, RemoteException, JSONException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IabException) throw (IabException) cause;
+                    if (cause instanceof RemoteException) throw (RemoteException) cause;
+                    if (cause instanceof JSONException) throw (JSONException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+        finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Asynchronous wrapper for inventory query. This will perform an inventory
      * query as described in {@link #queryInventory}, but will do so asynchronously
      * and call back the specified listener upon completion. This method is safe to
      * call from a UI thread.
      *
+     * If a refresh that queries at least as much is already running or queued, no
+     * new one is started: the listener is called with the result of that refresh,
+     * along with everyone else waiting for it.
+     *
      * @param querySkuDetails as in {@link #queryInventory}
      * @param moreSkus as in {@link #queryInventory}
      * @param listener The listener to notify when the refresh operation completes.
@@ -593,29 +1104,100 @@ public class IabHelper {
                                final QueryInventoryFinishedListener listener) {
         final Handler handler = new Handler();
         checkSetupDone("queryInventory");
-        flagStartAsync("refresh inventory");
-        (new Thread(new Runnable() {
-            public void run() {
-                IabResult result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
-                Inventory inv = null;
-                try {
-                    inv = queryInventory(querySkuDetails, moreSkus);
-                }
-                catch (IabException ex) {
-                    result = ex.getResult();
-                }
 
-                flagEndAsync();
+        List<OperationScheduler.Operation> refreshes = mScheduler.pending(OperationScheduler.REFRESH);
+        OperationScheduler.Operation running = mScheduler.running(OperationScheduler.REFRESH);
+        if (running != null) refreshes.add(0, running);
+        for (OperationScheduler.Operation op : refreshes) {
+            if (op instanceof RefreshOperation
+                    && ((RefreshOperation) op).attach(querySkuDetails, moreSkus, handler, listener)) {
+                logDebug("Joining async operation: " + op);
+                return;
+            }
+        }
 
-                final IabResult result_f = result;
-                final Inventory inv_f = inv;
-                handler.post(new Runnable() {
+        RefreshOperation refresh = new RefreshOperation(querySkuDetails, moreSkus);
+        refresh.attach(querySkuDetails, moreSkus, handler, listener);
+        schedule(refresh);
+    }
+
+    // An inventory refresh, and the listeners waiting for its result
+    class RefreshOperation extends OperationScheduler.Operation {
+        final boolean mQuerySkuDetails;
+        final List<String> mMoreSkus;
+
+        // Listeners and the handlers to call them on; null once the result is out. Guarded by "this".
+        private List<QueryInventoryFinishedListener> mListeners = new ArrayList<QueryInventoryFinishedListener>();
+        private List<Handler> mHandlers = new ArrayList<Handler>();
+
+        RefreshOperation(boolean querySkuDetails, List<String> moreSkus) {
+            super(OperationScheduler.REFRESH, "refresh inventory");
+            mQuerySkuDetails = querySkuDetails;
+            mMoreSkus = querySkuDetails && moreSkus != null ? new ArrayList<String>(moreSkus) : null;
+        }
+
+        /**
+         * Adds a listener for the result of this refresh, if it queries everything
+         * the listener asked for and has not delivered its result yet.
+         *
+         * @return whether the listener was added
+         */
+        synchronized boolean attach(boolean querySkuDetails, List<String> moreSkus,
+                                    Handler handler, QueryInventoryFinishedListener listener) {
+            if (mListeners == null) return false;
+            if (querySkuDetails) {
+                if (!mQuerySkuDetails) return false;
+                if (moreSkus != null && !moreSkus.isEmpty()
+                        && (mMoreSkus == null || !mMoreSkus.containsAll(moreSkus))) return false;
+            }
+            mListeners.add(listener);
+            mHandlers.add(handler);
+            return true;
+        }
+
+        public void run() {
+            IabResult result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
+            Inventory inv = null;
+            try {
+                inv = queryInventory(mQuerySkuDetails, mMoreSkus);
+            }
+            catch (IabException ex) {
+                result = ex.getResult();
+            }
+            finally {
+                finishOperation(this);
+            }
+            deliver(result, inv);
+        }
+
+        @Override
+        void rejected() {
+            logDebug("Async operation rejected: " + this);
+            deliver(new IabResult(IABHELPER_UNKNOWN_ERROR, "Refresh dropped or rejected by the executor."), null);
+        }
+
+        // Posts the result to every listener waiting for it
+        private void deliver(IabResult result, Inventory inv) {
+            List<QueryInventoryFinishedListener> listeners;
+            List<Handler> handlers;
+            synchronized (this) {
+                listeners = mListeners;
+                handlers = mHandlers;
+                mListeners = null;
+                mHandlers = null;
+            }
+
+            final IabResult result_f = result;
+            final Inventory inv_f = inv;
+            for (int i = 0; i < listeners.size(); ++i) {
+                final QueryInventoryFinishedListener listener = listeners.get(i);
+                handlers.get(i).post(new Runnable() {
                     public void run() {
                         listener.onQueryInventoryFinished(result_f, inv_f);
                     }
                 });
             }
-        })).start();
+        }
     }
 
     public void queryInventoryAsync(QueryInventoryFinishedListener listener) {
@@ -657,6 +1239,7 @@ public class IabHelper {
             int response = mService.consumePurchase(3, mContext.getPackageName(), token);
             if (response == BILLING_RESPONSE_RESULT_OK) {
                logDebug("Successfully consumed sku: " + sku);
+               removeConsumedPurchase(sku, token);
             }
             else {
                logDebug("Error consuming consuming sku " + sku + ". " + getResponseDesc(response));
@@ -668,6 +1251,22 @@ public class IabHelper {
         }
     }
 
+    // Removes a consumed purchase from the published inventory, unless a newer
+    // purchase of the same product has replaced it there in the meantime
+    private void removeConsumedPurchase(String sku, String token) {
+        while (true) {
+            Inventory current = mInventory.get();
+            if (current == null) return;
+            Purchase p = current.getPurchase(sku);
+            if (p == null || !token.equals(p.getToken())) return;
+            Inventory next = current.withoutPurchase(sku);
+            if (mInventory.compareAndSet(current, next)) {
+                inventoryChanged(current, next);
+                return;
+            }
+        }
+    }
+
     /**
      * Callback that notifies when a consumption operation finishes.
      */
@@ -795,89 +1394,166 @@ public class IabHelper {
         }
     }
 
-    void flagStartAsync(String operation) {
-        if (mAsyncInProgress) throw new IllegalStateException("Can't start async operation (" +
-                operation + ") because another async operation(" + mAsyncOperation + ") is in progress.");
-        mAsyncOperation = operation;
-        mAsyncInProgress = true;
-        logDebug("Starting async operation: " + operation);
+    // Returns the verifier for purchase signatures; the key is parsed on first use
+    SignatureVerifier getSignatureVerifier() {
+        if (mSignatureVerifier == null) mSignatureVerifier = Security.getVerifier(mSignatureBase64);
+        return mSignatureVerifier;
     }
 
-    void flagEndAsync() {
-        logDebug("Ending async operation: " + mAsyncOperation);
-        mAsyncOperation = "";
-        mAsyncInProgress = false;
+    void schedule(OperationScheduler.Operation op) {
+        logDebug("Queueing async operation: " + op);
+        mScheduler.submit(op);
     }
 
+    void finishOperation(OperationScheduler.Operation op) {
+        logDebug("Ending async operation: " + op);
+        mScheduler.finish(op);
+    }
+
+    // Ends the purchase flow that is waiting for its activity result, if any
+    void endPurchaseFlow() {
+        OperationScheduler.Operation op = mPurchaseOperation;
+        mPurchaseOperation = null;
+        if (op != null) finishOperation(op);
+    }
 
-    int queryPurchases(Inventory inv, String itemType) throws JSONException, RemoteException {
+
+    int queryPurchases(Inventory.Builder inv, String itemType) throws JSONException, RemoteException {
         // Query purchases
         logDebug("Querying owned items, item type: " + itemType);
         logDebug("Package name: " + mContext.getPackageName());
         boolean verificationFailed = false;
         String continueToken = null;
 
-        do {
-            logDebug("Calling getPurchases with continuation token: " + continueToken);
-            Bundle ownedItems = mService.getPurchases(3, mContext.getPackageName(),
-                    itemType, continueToken);
-
-            int response = getResponseCodeFromBundle(ownedItems);
-            logDebug("Owned items response: " + String.valueOf(response));
-            if (response != BILLING_RESPONSE_RESULT_OK) {
-                logDebug("getPurchases() failed: " + getResponseDesc(response));
-                return response;
-            }
-            if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST)
-                    || !ownedItems.containsKey(RESPONSE_INAPP_PURCHASE_DATA_LIST)
-                    || !ownedItems.containsKey(RESPONSE_INAPP_SIGNATURE_LIST)) {
-                logError("Bundle returned from getPurchases() doesn't contain required fields.");
-                return IABHELPER_BAD_RESPONSE;
-            }
+        // With pipelined pages, pages are verified on Security's verification pool while
+        // the next one is fetched; at most MAX_PAGES_IN_FLIGHT wait, and they are merged in
+        // page order. Not on our executor: its threads may all be running queries.
+        PagePipeline<PurchasePage> pages = mPipelinedPages
+                ? new PagePipeline<PurchasePage>(Security.getVerifyExecutor(), MAX_PAGES_IN_FLIGHT) : null;
+        try {
+            do {
+                logDebug("Calling getPurchases with continuation token: " + continueToken);
+                Bundle ownedItems = mService.getPurchases(3, mContext.getPackageName(),
+                        itemType, continueToken);
+
+                int response = getResponseCodeFromBundle(ownedItems);
+                logDebug("Owned items response: " + String.valueOf(response));
+                if (response != BILLING_RESPONSE_RESULT_OK) {
+                    logDebug("getPurchases() failed: " + getResponseDesc(response));
+                    return response;
+                }
+                if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST)
+                        || !ownedItems.containsKey(RESPONSE_INAPP_PURCHASE_DATA_LIST)
+                        || !ownedItems.containsKey(RESPONSE_INAPP_SIGNATURE_LIST)) {
+                    logError("Bundle returned from getPurchases() doesn't contain required fields.");
+                    return IABHELPER_BAD_RESPONSE;
+                }
 
-            ArrayList<String> ownedSkus = ownedItems.getStringArrayList(
-                        RESPONSE_INAPP_ITEM_LIST);
-            ArrayList<String> purchaseDataList = ownedItems.getStringArrayList(
-                        RESPONSE_INAPP_PURCHASE_DATA_LIST);
-            ArrayList<String> signatureList = ownedItems.getStringArrayList(
-                        RESPONSE_INAPP_SIGNATURE_LIST);
-
-            for (int i = 0; i < purchaseDataList.size(); ++i) {
-                String purchaseData = purchaseDataList.get(i);
-                String signature = signatureList.get(i);
-                String sku = ownedSkus.get(i);
-                if (Security.verifyPurchase(mSignatureBase64, purchaseData, signature)) {
-                    logDebug("Sku is owned: " + sku);
-                    Purchase purchase = new Purchase(itemType, purchaseData, signature);
-
-                    if (TextUtils.isEmpty(purchase.getToken())) {
-                        logWarn("BUG: empty/null token!");
-                        logDebug("Purchase data: " + purchaseData);
-                    }
+                ArrayList<String> ownedSkus = ownedItems.getStringArrayList(
+                            RESPONSE_INAPP_ITEM_LIST);
+                ArrayList<String> purchaseDataList = ownedItems.getStringArrayList(
+                            RESPONSE_INAPP_PURCHASE_DATA_LIST);
+                ArrayList<String> signatureList = ownedItems.getStringArrayList(
+                            RESPONSE_INAPP_SIGNATURE_LIST);
 
-                    // Record ownership and token
-                    inv.addPurchase(purchase);
+                if (pages != null) {
+                    if (pages.isFull()) verificationFailed |= addPage(inv, pages.takeOldest());
+                    pages.add(purchasePageTask(itemType, ownedSkus, purchaseDataList, signatureList));
                 }
                 else {
-                    logWarn("Purchase signature verification **FAILED**. Not adding item.");
-                    logDebug("   Purchase data: " + purchaseData);
-                    logDebug("   Signature: " + signature);
-                    verificationFailed = true;
+                    PurchasePage page = verifyPurchasePage(itemType, ownedSkus, purchaseDataList, signatureList);
+                    for (Purchase purchase : page.mPurchases) inv.addPurchase(purchase);
+                    verificationFailed |= page.mVerificationFailed;
                 }
-            }
 
-            continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
-            logDebug("Continuation token: " + continueToken);
-        } while (!TextUtils.isEmpty(continueToken));
+                continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
+                logDebug("Continuation token: " + continueToken);
+            } while (!TextUtils.isEmpty(continueToken));
+
+            while (pages != null && !pages.isEmpty()) {
+                verificationFailed |= addPage(inv, pages.takeOldest());
+            }
+        }
+        finally {
+            // after an error, pages nobody has started are not needed
+            if (pages != null) pages.cancel();
+        }
 
         return verificationFailed ? IABHELPER_VERIFICATION_FAILED : BILLING_RESPONSE_RESULT_OK;
     }
 
-    int querySkuDetails(String itemType, Inventory inv, List<String> moreSkus) 
+    // The verified purchases of one page of getPurchases() results
+    static class PurchasePage {
+        final List<Purchase> mPurchases = new ArrayList<Purchase>();
+        boolean mVerificationFailed = false;
+    }
+
+    // Verifies and parses one page of getPurchases() results
+    PurchasePage verifyPurchasePage(String itemType, List<String> ownedSkus, List<String> purchaseDataList,
+                                    List<String> signatureList) throws JSONException {
+        PurchasePage page = new PurchasePage();
+        BitSet verified = Security.verifyAll(getSignatureVerifier(), purchaseDataList, signatureList);
+        for (int i = 0; i < purchaseDataList.size(); ++i) {
+            String purchaseData = purchaseDataList.get(i);
+            String signature = signatureList.get(i);
+            String sku = ownedSkus.get(i);
+            if (verified.get(i)) {
+                logDebug("Sku is owned: " + sku);
+                Purchase purchase = new Purchase(itemType, purchaseData, signature);
+
+                if (TextUtils.isEmpty(purchase.getToken())) {
+                    logWarn("BUG: empty/null token!");
+                    logDebug("Purchase data: " + purchaseData);
+                }
+
+                purchase.intern(mStringPool);
+                if (mPurchaseJsonRetention == JSON_COMPRESS) purchase.compressJson();
+                else if (mPurchaseJsonRetention == JSON_DROP) purchase.dropJson();
+
+                // Record ownership and token
+                page.mPurchases.add(purchase);
+            }
+            else {
+                logWarn("Purchase signature verification **FAILED**. Not adding item.");
+                logDebug("   Purchase data: " + purchaseData);
+                logDebug("   Signature: " + signature);
+                page.mVerificationFailed = true;
+            }
+        }
+        return page;
+    }
+
+    // Wraps verifyPurchasePage for a PagePipeline
+    Callable<PurchasePage> purchasePageTask(final String itemType, final List<String> ownedSkus,
+                                            final List<String> purchaseDataList,
+                                            final List<String> signatureList) {
+        return new Callable<PurchasePage>() {
+            public PurchasePage call() throws Exception {
+                return verifyPurchasePage(itemType, ownedSkus, purchaseDataList, signatureList);
+            }
+        };
+    }
+
+    // Waits for a page taken from the pipeline and adds its purchases. Returns
+    // whether any purchase failed verification.
+    boolean addPage(Inventory.Builder inv, FutureTask<PurchasePage> task) throws JSONException, RemoteException {
+        PurchasePage page;
+        try {
+            page = awaitQuery(task);
+        }
+        catch (IabException e) {
+            // verifyPurchasePage does not throw it
+            throw new RuntimeException(e);
+        }
+        for (Purchase purchase : page.mPurchases) inv.addPurchase(purchase);
+        return page.mVerificationFailed;
+    }
+
+    int querySkuDetails(String itemType, Inventory.Builder inv, List<String> moreSkus) 
                                 throws RemoteException, JSONException {
         logDebug("Querying SKU details.");
         ArrayList<String> skuList = new ArrayList<String>();
-        skuList.addAll(inv.getAllOwnedSkus(itemType));
+        skuList.addAll(inv.ownedSkusView(itemType));
         if (moreSkus != null) skuList.addAll(moreSkus);
 
         if (skuList.size() == 0) {
@@ -918,21 +1594,38 @@ public class IabHelper {
                               final OnConsumeFinishedListener singleListener,
                               final OnConsumeMultiFinishedListener multiListener) {
         final Handler handler = new Handler();
-        flagStartAsync("consume");
-        (new Thread(new Runnable() {
+        schedule(new OperationScheduler.Operation(OperationScheduler.CONSUME, "consume") {
             public void run() {
-                final List<IabResult> results = new ArrayList<IabResult>();
-                for (Purchase purchase : purchases) {
-                    try {
-                        consume(purchase);
-                        results.add(new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku()));
-                    }
-                    catch (IabException ex) {
-                        results.add(ex.getResult());
+                List<IabResult> results = new ArrayList<IabResult>();
+                try {
+                    for (Purchase purchase : purchases) {
+                        try {
+                            consume(purchase);
+                            results.add(new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku()));
+                        }
+                        catch (IabException ex) {
+                            results.add(ex.getResult());
+                        }
                     }
                 }
+                finally {
+                    finishOperation(this);
+                }
+                deliver(results);
+            }
+
+            @Override
+            void rejected() {
+                logDebug("Async operation rejected: " + this);
+                List<IabResult> results = new ArrayList<IabResult>();
+                for (Purchase purchase : purchases) {
+                    results.add(new IabResult(IABHELPER_UNKNOWN_ERROR,
+                            "Consumption of sku " + purchase.getSku() + " dropped or rejected by the executor."));
+                }
+                deliver(results);
+            }
 
-                flagEndAsync();
+            private void deliver(final List<IabResult> results) {
                 if (singleListener != null) {
                     handler.post(new Runnable() {
                         public void run() {
@@ -948,7 +1641,7 @@ public class IabHelper {
                     });
                 }
             }
-        })).start();
+        });
     }
     
     void logDebug(String msg) {
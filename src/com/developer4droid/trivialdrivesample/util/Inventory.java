@@ -16,19 +16,88 @@
 package com.developer4droid.trivialdrivesample.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents a block of information about in-app items.
  * An Inventory is returned by such methods as {@link IabHelper#queryInventory}.
+ *
+ * An Inventory is an immutable snapshot, so it can be shared between threads
+ * freely. Changes, such as removing a consumed purchase, produce a new
+ * snapshot; the latest one is available from {@link IabHelper#getInventory}.
  */
 public class Inventory {
-    Map<String,SkuDetails> mSkuMap = new HashMap<String,SkuDetails>();
-    Map<String,Purchase> mPurchaseMap = new HashMap<String,Purchase>();
+    final Map<String,SkuDetails> mSkuMap;
+    final Map<String,Purchase> mPurchaseMap;
+
+    // Owned product IDs by item type, mirroring mPurchaseMap
+    final Map<String,Set<String>> mOwnedSkusByType;
+
+    // Ownership and purchases by SkuRegistry id, mirroring mPurchaseMap
+    private final BitSet mOwned;
+    private final Purchase[] mPurchasesById;
+
+    // Products with a known price, sorted by price, and their prices in the same order
+    private final SkuDetails[] mByPrice;
+    private final long[] mPriceMicros;
+
+    private static final Comparator<SkuDetails> PRICE_ORDER = new Comparator<SkuDetails>() {
+        public int compare(SkuDetails a, SkuDetails b) {
+            long x = a.getPriceAmountMicros(), y = b.getPriceAmountMicros();
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+    };
+
+    // An inventory with nothing in it
+    static final Inventory EMPTY = new Builder().build();
+
+    private Inventory(Builder builder) {
+        mSkuMap = Collections.unmodifiableMap(new HashMap<String,SkuDetails>(builder.mSkuMap));
+        mPurchaseMap = Collections.unmodifiableMap(new HashMap<String,Purchase>(builder.mPurchaseMap));
+
+        Map<String,Set<String>> byType = new HashMap<String,Set<String>>();
+        for (Map.Entry<String,Set<String>> e : builder.mOwnedSkusByType.entrySet()) {
+            byType.put(e.getKey(), Collections.unmodifiableSet(new LinkedHashSet<String>(e.getValue())));
+        }
+        mOwnedSkusByType = Collections.unmodifiableMap(byType);
 
-    Inventory() { }
+        // Index purchases by id
+        BitSet owned = new BitSet();
+        Purchase[] purchases = new Purchase[SkuRegistry.size()];
+        for (Purchase p : mPurchaseMap.values()) {
+            int id = SkuRegistry.register(p.getSku());
+            if (id >= purchases.length) {
+                Purchase[] grown = new Purchase[Math.max(id + 1, SkuRegistry.size())];
+                System.arraycopy(purchases, 0, grown, 0, purchases.length);
+                purchases = grown;
+            }
+            purchases[id] = p;
+            owned.set(id);
+        }
+        mOwned = owned;
+        mPurchasesById = purchases;
+
+        // Sort the products with a known price
+        List<SkuDetails> priced = new ArrayList<SkuDetails>(mSkuMap.size());
+        for (SkuDetails d : mSkuMap.values()) {
+            if (d.getPriceAmountMicros() >= 0) priced.add(d);
+        }
+        SkuDetails[] byPrice = priced.toArray(new SkuDetails[priced.size()]);
+        Arrays.sort(byPrice, PRICE_ORDER);
+        long[] prices = new long[byPrice.length];
+        for (int i = 0; i < byPrice.length; ++i) prices[i] = byPrice[i].getPriceAmountMicros();
+        mByPrice = byPrice;
+        mPriceMicros = prices;
+    }
 
     /** Returns the listing details for an in-app product. */
     public SkuDetails getSkuDetails(String sku) {
@@ -45,35 +114,111 @@ public class Inventory {
         return mPurchaseMap.containsKey(sku);
     }
 
+    /**
+     * Returns purchase information for the product with the given
+     * {@link SkuRegistry} id, or null if there is no purchase. An unknown id,
+     * such as the -1 that {@link SkuRegistry#idOf} returns, has no purchase.
+     */
+    public Purchase getPurchase(int skuId) {
+        return skuId >= 0 && skuId < mPurchasesById.length ? mPurchasesById[skuId] : null;
+    }
+
+    /**
+     * Returns whether or not there exists a purchase of the product with the
+     * given {@link SkuRegistry} id, such as {@link IabHelper#SKU_ID_GOLD_MONTH}.
+     * Returns false for an unknown id, such as -1.
+     */
+    public boolean hasPurchase(int skuId) {
+        return skuId >= 0 && skuId < mPurchasesById.length && mOwned.get(skuId);
+    }
+
     /** Return whether or not details about the given product are available. */
     public boolean hasDetails(String sku) {
         return mSkuMap.containsKey(sku);
     }
 
     /**
-     * Erase a purchase (locally) from the inventory, given its product ID. This just
-     * modifies the Inventory object locally and has no effect on the server! This is
-     * useful when you have an existing Inventory object which you know to be up to date,
-     * and you have just consumed an item successfully, which means that erasing its
-     * purchase data from the Inventory you already have is quicker than querying for
-     * a new Inventory.
+     * Returns the listing details of all products with a known price, cheapest
+     * first. Prices are compared as amounts only, so this assumes they are all
+     * in the same currency, as they are for the details of a single query.
+     */
+    public List<SkuDetails> getSkuDetailsByPrice() {
+        return Collections.unmodifiableList(Arrays.asList(mByPrice));
+    }
+
+    /**
+     * Returns the listing details of the products priced between
+     * <var>minMicros</var> and <var>maxMicros</var> inclusive, cheapest first.
+     *
+     * @see SkuDetails#getPriceAmountMicros
+     */
+    public List<SkuDetails> getSkuDetailsInPriceRange(long minMicros, long maxMicros) {
+        int from = lowerBound(mPriceMicros, minMicros);
+        int to = maxMicros == Long.MAX_VALUE ? mPriceMicros.length : lowerBound(mPriceMicros, maxMicros + 1);
+        if (from >= to) return Collections.emptyList();
+        return Collections.unmodifiableList(Arrays.asList(mByPrice).subList(from, to));
+    }
+
+    /**
+     * Returns the listing details of the cheapest product priced at least
+     * <var>minMicros</var>, or null if there is none.
+     */
+    public SkuDetails getCheapestSkuDetails(long minMicros) {
+        int i = lowerBound(mPriceMicros, minMicros);
+        return i < mByPrice.length ? mByPrice[i] : null;
+    }
+
+    // Returns the index of the first element of the sorted array that is >= key
+    private static int lowerBound(long[] sorted, long key) {
+        int low = 0, high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Returns what has changed from <var>previous</var> to this inventory.
+     * This takes time proportional to the size of the two inventories.
+     *
+     * @param previous the older inventory, or null to treat everything as added
      */
-    public void erasePurchase(String sku) {
-        if (mPurchaseMap.containsKey(sku)) mPurchaseMap.remove(sku);
+    public InventoryDiff diff(Inventory previous) {
+        return new InventoryDiff(previous != null ? previous : EMPTY, this);
+    }
+
+    /**
+     * Returns a copy of this inventory without the purchase of the given product.
+     * This has no effect on the server! It is useful when you have an Inventory
+     * which you know to be up to date, and you have just consumed an item
+     * successfully: removing its purchase locally is quicker than querying for
+     * a new Inventory. {@link IabHelper} does this itself for the inventory it
+     * publishes through {@link IabHelper#getInventory}.
+     *
+     * This replaces {@code erasePurchase(String)}, which changed the inventory
+     * in place and cannot exist now that inventories are immutable: where you
+     * called {@code inv.erasePurchase(sku)}, use {@code inv = inv.withoutPurchase(sku)}.
+     */
+    public Inventory withoutPurchase(String sku) {
+        if (!mPurchaseMap.containsKey(sku)) return this;
+        return new Builder(this).removePurchase(sku).build();
+    }
+
+    /** Returns a copy of this inventory with the given purchase added or replaced. */
+    Inventory withPurchase(Purchase p) {
+        return new Builder(this).addPurchase(p).build();
     }
 
     /** Returns a list of all owned product IDs. */
     List<String> getAllOwnedSkus() {
         return new ArrayList<String>(mPurchaseMap.keySet());
     }
-    
+
     /** Returns a list of all owned product IDs of a given type */
     List<String> getAllOwnedSkus(String itemType) {
-        List<String> result = new ArrayList<String>();
-        for (Purchase p : mPurchaseMap.values()) {
-            if (p.getItemType().equals(itemType)) result.add(p.getSku());
-        }
-        return result;
+        return new ArrayList<String>(ownedSkusView(itemType));
     }
 
     /** Returns a list of all purchases. */
@@ -81,11 +226,88 @@ public class Inventory {
         return new ArrayList<Purchase>(mPurchaseMap.values());
     }
 
-    void addSkuDetails(SkuDetails d) {
-        mSkuMap.put(d.getSku(), d);
+    /** Returns all owned product IDs, without copying. */
+    Collection<String> ownedSkusView() {
+        return mPurchaseMap.keySet();
+    }
+
+    /** Returns the owned product IDs of a given type, in the order they were added, without copying. */
+    Collection<String> ownedSkusView(String itemType) {
+        Set<String> skus = mOwnedSkusByType.get(itemType);
+        return skus != null ? skus : Collections.<String>emptySet();
     }
 
-    void addPurchase(Purchase p) {
-        mPurchaseMap.put(p.getSku(), p);
+    /** Returns all purchases, without copying. */
+    Collection<Purchase> purchasesView() {
+        return mPurchaseMap.values();
+    }
+
+    /**
+     * Collects the purchases and listing details for a new {@link Inventory}.
+     * A builder is used by one thread at a time; the inventories it builds are
+     * independent of it.
+     */
+    static final class Builder {
+        final Map<String,SkuDetails> mSkuMap = new HashMap<String,SkuDetails>();
+        final Map<String,Purchase> mPurchaseMap = new HashMap<String,Purchase>();
+        final Map<String,Set<String>> mOwnedSkusByType = new HashMap<String,Set<String>>();
+
+        Builder() { }
+
+        /** Creates a builder holding the contents of <var>base</var>. */
+        Builder(Inventory base) {
+            mSkuMap.putAll(base.mSkuMap);
+            // go through the type index to keep each type's order
+            for (Set<String> skus : base.mOwnedSkusByType.values()) {
+                for (String sku : skus) addPurchase(base.mPurchaseMap.get(sku));
+            }
+        }
+
+        Builder addSkuDetails(SkuDetails d) {
+            mSkuMap.put(d.getSku(), d);
+            return this;
+        }
+
+        Builder addPurchase(Purchase p) {
+            Purchase old = mPurchaseMap.put(p.getSku(), p);
+            if (old != null) removeFromTypeIndex(old);
+            Set<String> skus = mOwnedSkusByType.get(p.getItemType());
+            if (skus == null) {
+                skus = new LinkedHashSet<String>();
+                mOwnedSkusByType.put(p.getItemType(), skus);
+            }
+            skus.add(p.getSku());
+            return this;
+        }
+
+        /** Adds everything in <var>other</var>, keeping each type's order. */
+        Builder addAll(Builder other) {
+            mSkuMap.putAll(other.mSkuMap);
+            for (Set<String> skus : other.mOwnedSkusByType.values()) {
+                for (String sku : skus) addPurchase(other.mPurchaseMap.get(sku));
+            }
+            return this;
+        }
+
+        Builder removePurchase(String sku) {
+            Purchase p = mPurchaseMap.remove(sku);
+            if (p != null) removeFromTypeIndex(p);
+            return this;
+        }
+
+        /** Returns the owned product IDs of a given type added so far, without copying. */
+        Collection<String> ownedSkusView(String itemType) {
+            Set<String> skus = mOwnedSkusByType.get(itemType);
+            return skus != null ? Collections.unmodifiableSet(skus) : Collections.<String>emptySet();
+        }
+
+        private void removeFromTypeIndex(Purchase p) {
+            Set<String> skus = mOwnedSkusByType.get(p.getItemType());
+            if (skus != null) skus.remove(p.getSku());
+        }
+
+        Inventory build() {
+            return new Inventory(this);
+        }
     }
 }
@@ -0,0 +1,158 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.developer4droid.trivialdrivesample.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Keeps the last known inventory in a file, so that entitlements can be
+ * applied at startup before the billing service has answered. The file is
+ * read through a memory-mapped {@link FileChannel}, and every purchase in it
+ * is verified again on loading, so an edited file cannot grant anything.
+ * The file holds the inventory in the form written by {@link InventoryCodec}.
+ *
+ * Loading is not free of JSON work: besides the signature check, each
+ * purchase's JSON is scanned once to check that the fields stored next to it
+ * match it, since the signature only covers the JSON. The values are compared
+ * in place rather than decoded, and the scan costs far less than the RSA
+ * verification it accompanies; it is the price of trusting the stored fields.
+ *
+ * See {@link IabHelper#enableInventoryCacheAsync}.
+ */
+class InventoryCache {
+    private static final String TAG = "IABUtil/InventoryCache";
+
+    private final File mFile;
+
+    InventoryCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the cached inventory, keeping only the purchases whose signatures
+     * <var>verifier</var> accepts.
+     *
+     * @return the inventory, or null if there is no usable cache file
+     */
+    Inventory load(SignatureVerifier verifier) {
+        if (!mFile.exists()) return null;
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        List<SkuDetails> details = new ArrayList<SkuDetails>();
+        try {
+            InventoryCodec.decodeInventory(map(mFile), purchases, details);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable inventory cache " + mFile + ": " + e.getMessage());
+            return null;
+        }
+
+        List<String> purchaseData = new ArrayList<String>(purchases.size());
+        List<String> signatures = new ArrayList<String>(purchases.size());
+        for (Purchase p : purchases) {
+            purchaseData.add(p.getOriginalJson());
+            signatures.add(p.getSignature());
+        }
+        BitSet verified = Security.verifyAll(verifier, purchaseData, signatures);
+
+        Inventory.Builder inv = new Inventory.Builder();
+        for (int i = 0; i < purchases.size(); ++i) {
+            // verifyAll accepts unsigned data, as test purchases are; a file must not
+            if (verified.get(i) && !TextUtils.isEmpty(signatures.get(i)) && fieldsMatchJson(purchases.get(i))) {
+                inv.addPurchase(purchases.get(i));
+            }
+            else {
+                Log.w(TAG, "Dropping cached purchase that failed verification: " + purchaseData.get(i));
+            }
+        }
+        for (SkuDetails d : details) inv.addSkuDetails(d);
+        return inv.build();
+    }
+
+    // The codec stores decoded fields next to the signed JSON; they must agree,
+    // or an edited file could grant one product with the signature of another
+    private static boolean fieldsMatchJson(Purchase cached) {
+        try {
+            return cached.fieldsMatchJson();
+        }
+        catch (JSONException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes <var>inv</var> to the cache file, replacing it as a whole: the
+     * data is written to a temporary file and synced before it is renamed
+     * over the old one. Purchases whose JSON was dropped after verification
+     * cannot be verified again, so they are left out. This blocks; call it
+     * in the background.
+     */
+    synchronized void save(Inventory inv) {
+        Inventory.Builder verifiable = new Inventory.Builder(inv);
+        for (Purchase p : inv.purchasesView()) {
+            if (p.getOriginalJson() == null) verifiable.removePurchase(p.getSku());
+        }
+        byte[] data = InventoryCodec.encode(verifiable.build());
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+                // the data must be on disk before the rename is, or a crash
+                // could leave an empty file in place of the old one
+                out.getChannel().force(true);
+            }
+            finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) throw new IOException("Could not rename " + tmp + " to " + mFile);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Could not write inventory cache " + mFile, e);
+            tmp.delete();
+        }
+    }
+
+    /** Deletes the cache file. */
+    synchronized void clear() {
+        mFile.delete();
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            raf.close();
+        }
+    }
+}
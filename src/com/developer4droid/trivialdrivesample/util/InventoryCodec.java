@@ -0,0 +1,411 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.developer4droid.trivialdrivesample.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary form of {@link Purchase}, {@link SkuDetails} and whole
+ * {@link Inventory inventories}, for caches and for handing data to a
+ * backend. Reading it needs no JSON parsing: every field is stored decoded.
+ *
+ * An inventory starts with a header (magic number and format version),
+ * followed by a count and the records for its purchases, then a count and
+ * the records for its listing details. Each record starts with its length in
+ * bytes, so a reader can skip fields that a later version appends. Counts
+ * and string lengths are unsigned varints, strings are UTF-8, and all
+ * fixed-size numbers are big-endian.
+ *
+ * Reads work straight from a {@link ByteBuffer}, including a memory-mapped
+ * one, without copying the data to an intermediate array. Writes build the
+ * whole encoding in one array, to be written with a single call.
+ */
+public final class InventoryCodec {
+    private static final int MAGIC = 0x49414249;  // "IABI"
+
+    /** The format version written by this class. Readers accept older versions. */
+    public static final int VERSION = 1;
+
+    private InventoryCodec() { }
+
+    /**
+     * Returns the binary form of a whole inventory.
+     *
+     * @throws IllegalArgumentException if the JSON of a purchase was dropped,
+     *     as the signature cannot be checked without it
+     */
+    public static byte[] encode(Inventory inv) {
+        Output out = new Output(256 + 512 * (inv.mPurchaseMap.size() + inv.mSkuMap.size()));
+        out.writeInt(MAGIC);
+        out.writeVarint(VERSION);
+        out.writeVarint(inv.mPurchaseMap.size());
+        for (Purchase p : inv.purchasesView()) writePurchase(out, p);
+        out.writeVarint(inv.mSkuMap.size());
+        for (SkuDetails d : inv.mSkuMap.values()) writeSkuDetails(out, d);
+        return out.toByteArray();
+    }
+
+    /** Writes the binary form of a whole inventory to <var>stream</var> in a single write. */
+    public static void encode(Inventory inv, OutputStream stream) throws IOException {
+        byte[] data = encode(inv);
+        stream.write(data, 0, data.length);
+    }
+
+    /**
+     * Returns the binary form of one purchase, without the inventory header.
+     *
+     * @throws IllegalArgumentException if the purchase's JSON was dropped
+     */
+    public static byte[] encode(Purchase p) {
+        Output out = new Output(512);
+        writePurchase(out, p);
+        return out.toByteArray();
+    }
+
+    /** Returns the binary form of one product's listing details, without the inventory header. */
+    public static byte[] encode(SkuDetails d) {
+        Output out = new Output(512);
+        writeSkuDetails(out, d);
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads an inventory written by {@link #encode(Inventory)}, starting at the
+     * buffer's position and leaving it after the inventory. Signatures are
+     * not checked, so only use this on data you trust; see
+     * {@link Security#verifyAll} otherwise.
+     *
+     * @throws IOException if the data is malformed or from a newer version
+     */
+    public static Inventory decodeInventory(ByteBuffer in) throws IOException {
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        List<SkuDetails> details = new ArrayList<SkuDetails>();
+        decodeInventory(in, purchases, details);
+        Inventory.Builder inv = new Inventory.Builder();
+        for (Purchase p : purchases) inv.addPurchase(p);
+        for (SkuDetails d : details) inv.addSkuDetails(d);
+        return inv.build();
+    }
+
+    /** Reads the purchases and listing details of an encoded inventory into the given lists. */
+    static void decodeInventory(ByteBuffer in, List<Purchase> purchases, List<SkuDetails> details)
+            throws IOException {
+        ByteOrder order = in.order();
+        in.order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (in.getInt() != MAGIC) throw new IOException("Not an encoded inventory");
+            int version = readVarint(in);
+            if (version > VERSION) throw new IOException("Unsupported inventory format version " + version);
+            for (int i = readVarint(in); i > 0; --i) purchases.add(readPurchase(in));
+            for (int i = readVarint(in); i > 0; --i) details.add(readSkuDetails(in));
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated inventory data");
+        }
+        finally {
+            in.order(order);
+        }
+    }
+
+    /** Reads one purchase written by {@link #encode(Purchase)}. */
+    public static Purchase decodePurchase(ByteBuffer in) throws IOException {
+        ByteOrder order = in.order();
+        in.order(ByteOrder.BIG_ENDIAN);
+        try {
+            return readPurchase(in);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated purchase data");
+        }
+        finally {
+            in.order(order);
+        }
+    }
+
+    /** Reads one product's listing details written by {@link #encode(SkuDetails)}. */
+    public static SkuDetails decodeSkuDetails(ByteBuffer in) throws IOException {
+        ByteOrder order = in.order();
+        in.order(ByteOrder.BIG_ENDIAN);
+        try {
+            return readSkuDetails(in);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated SKU details data");
+        }
+        finally {
+            in.order(order);
+        }
+    }
+
+    private static void writePurchase(Output out, Purchase p) {
+        String json = p.getOriginalJson();
+        if (json == null) throw new IllegalArgumentException("Purchase JSON was dropped: " + p.getSku());
+        int start = out.beginRecord();
+        out.writeString(p.getItemType());
+        out.writeString(p.getOrderId());
+        out.writeString(p.getPackageName());
+        out.writeString(p.getSku());
+        out.writeLong(p.getPurchaseTime());
+        out.writeVarint(p.getPurchaseState());
+        out.writeString(p.getDeveloperPayload());
+        out.writeString(p.getToken());
+        out.writeString(json);
+        out.writeString(p.getSignature());
+        out.endRecord(start);
+    }
+
+    private static Purchase readPurchase(ByteBuffer in) throws IOException {
+        int end = recordEnd(in);
+        Purchase p = new Purchase();
+        p.mItemType = readRequiredString(in, "item type");
+        p.mOrderId = readRequiredString(in, "order ID");
+        p.mPackageName = readRequiredString(in, "package name");
+        p.mSku = readRequiredString(in, "SKU");
+        p.mPurchaseTime = in.getLong();
+        p.mPurchaseState = readVarint(in);
+        p.mDeveloperPayload = readRequiredString(in, "developer payload");
+        p.mToken = readRequiredString(in, "token");
+        p.mOriginalJson = readRequiredString(in, "purchase JSON");
+        p.mSignature = readRequiredString(in, "signature");
+        skipTo(in, end);
+        return p;
+    }
+
+    private static void writeSkuDetails(Output out, SkuDetails d) {
+        int start = out.beginRecord();
+        out.writeString(d.mItemType);
+        out.writeString(d.getSku());
+        out.writeString(d.getType());
+        out.writeString(d.getPrice());
+        out.writeString(d.getTitle());
+        out.writeString(d.getDescription());
+        out.writeLong(d.getPriceAmountMicros());
+        out.writeString(d.getPriceCurrencyCode());
+        out.writeString(d.mJson);
+        out.endRecord(start);
+    }
+
+    private static SkuDetails readSkuDetails(ByteBuffer in) throws IOException {
+        int end = recordEnd(in);
+        SkuDetails d = new SkuDetails();
+        d.mItemType = readRequiredString(in, "item type");
+        d.mSku = readRequiredString(in, "SKU");
+        d.mType = readRequiredString(in, "type");
+        d.mPrice = readRequiredString(in, "price");
+        d.mTitle = readRequiredString(in, "title");
+        d.mDescription = readRequiredString(in, "description");
+        d.mPriceAmountMicros = in.getLong();
+        d.mPriceCurrencyCode = readRequiredString(in, "currency code");
+        d.mJson = readRequiredString(in, "SKU details JSON");
+        skipTo(in, end);
+        return d;
+    }
+
+    // Reads a record's length and returns the position just after the record
+    private static int recordEnd(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) throw new IOException("Bad record length " + length);
+        return in.position() + length;
+    }
+
+    // Moves past any fields a newer writer added to the end of a record
+    private static void skipTo(ByteBuffer in, int end) throws IOException {
+        if (in.position() > end) throw new IOException("Record overruns its length");
+        in.position(end);
+    }
+
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    // Strings are stored as (length + 1) then UTF-8 bytes, with 0 meaning null
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = readVarint(in) - 1;
+        if (length < 0) return null;
+        if (length > in.remaining()) throw new IOException("Bad string length " + length);
+        int position = in.position();
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + position, length, "UTF-8");
+        }
+        else {
+            s = decodeDirect(in, position, length);
+        }
+        in.position(position + length);
+        return s;
+    }
+
+    // The readers of Purchase and SkuDetails assume their fields are never
+    // null, so a record without one is as malformed as a truncated one
+    private static String readRequiredString(ByteBuffer in, String field) throws IOException {
+        String s = readString(in);
+        if (s == null) throw new IOException("Record has no " + field);
+        return s;
+    }
+
+    // Decodes UTF-8 from a direct buffer. Purchase data is almost all ASCII,
+    // which is decoded straight into chars; anything else is copied out first.
+    private static String decodeDirect(ByteBuffer in, int position, int length) throws UnsupportedEncodingException {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i) {
+            byte b = in.get(position + i);
+            if (b < 0) {
+                byte[] bytes = new byte[length];
+                for (int j = 0; j < length; ++j) bytes[j] = in.get(position + j);
+                return new String(bytes, "UTF-8");
+            }
+            chars[i] = (char) b;
+        }
+        return new String(chars);
+    }
+
+    /** A growable byte array that the whole encoding is written to. */
+    static final class Output {
+        private byte[] mBuf;
+        private int mCount = 0;
+
+        Output(int capacity) {
+            mBuf = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (mCount + extra <= mBuf.length) return;
+            byte[] buf = new byte[Math.max(mBuf.length * 2, mCount + extra)];
+            System.arraycopy(mBuf, 0, buf, 0, mCount);
+            mBuf = buf;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            mBuf[mCount++] = (byte) (v >>> 24);
+            mBuf[mCount++] = (byte) (v >>> 16);
+            mBuf[mCount++] = (byte) (v >>> 8);
+            mBuf[mCount++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarint(int v) {
+            ensure(5);
+            while ((v & ~0x7f) != 0) {
+                mBuf[mCount++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            mBuf[mCount++] = (byte) v;
+        }
+
+        /**
+         * Writes (UTF-8 length + 1) and the UTF-8 bytes, or a single 0 for null.
+         * Unpaired surrogates are written as '?', as String.getBytes does.
+         */
+        void writeString(String s) {
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+            int n = s.length();
+            int utfLength = 0;
+            for (int i = 0; i < n; ++i) {
+                char c = s.charAt(i);
+                if (c < 0x80) utfLength += 1;
+                else if (c < 0x800) utfLength += 2;
+                else if (!isSurrogate(c)) utfLength += 3;
+                else if (isPairAt(s, i)) {
+                    utfLength += 4;
+                    ++i;
+                }
+                else utfLength += 1;
+            }
+            writeVarint(utfLength + 1);
+            ensure(utfLength);
+
+            byte[] buf = mBuf;
+            int count = mCount;
+            for (int i = 0; i < n; ++i) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[count++] = (byte) c;
+                }
+                else if (c < 0x800) {
+                    buf[count++] = (byte) (0xc0 | (c >> 6));
+                    buf[count++] = (byte) (0x80 | (c & 0x3f));
+                }
+                else if (!isSurrogate(c)) {
+                    buf[count++] = (byte) (0xe0 | (c >> 12));
+                    buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[count++] = (byte) (0x80 | (c & 0x3f));
+                }
+                else if (isPairAt(s, i)) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[count++] = (byte) (0xf0 | (cp >> 18));
+                    buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[count++] = (byte) (0x80 | (cp & 0x3f));
+                }
+                else {
+                    buf[count++] = (byte) '?';
+                }
+            }
+            mCount = count;
+        }
+
+        private static boolean isSurrogate(char c) {
+            return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+        }
+
+        private static boolean isPairAt(String s, int i) {
+            return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1));
+        }
+
+        /** Reserves room for a record's length and returns where the record starts. */
+        int beginRecord() {
+            writeInt(0);
+            return mCount;
+        }
+
+        /** Fills in the length of the record started at <var>start</var>. */
+        void endRecord(int start) {
+            int length = mCount - start;
+            mBuf[start - 4] = (byte) (length >>> 24);
+            mBuf[start - 3] = (byte) (length >>> 16);
+            mBuf[start - 2] = (byte) (length >>> 8);
+            mBuf[start - 1] = (byte) length;
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[mCount];
+            System.arraycopy(mBuf, 0, result, 0, mCount);
+            return result;
+        }
+    }
+}
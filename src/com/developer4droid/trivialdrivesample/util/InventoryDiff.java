@@ -0,0 +1,99 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.developer4droid.trivialdrivesample.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The differences between two inventories, as returned by {@link Inventory#diff}.
+ * A purchase counts as changed when its token, order ID, state or purchase
+ * time differ; listing details count as changed when their JSON differs.
+ * Changed entries are reported as they are in the newer inventory.
+ */
+public class InventoryDiff {
+    private final List<Purchase> mAddedPurchases = new ArrayList<Purchase>();
+    private final List<Purchase> mRemovedPurchases = new ArrayList<Purchase>();
+    private final List<Purchase> mChangedPurchases = new ArrayList<Purchase>();
+    private final List<SkuDetails> mAddedSkuDetails = new ArrayList<SkuDetails>();
+    private final List<SkuDetails> mRemovedSkuDetails = new ArrayList<SkuDetails>();
+    private final List<SkuDetails> mChangedSkuDetails = new ArrayList<SkuDetails>();
+
+    InventoryDiff(Inventory previous, Inventory current) {
+        Map<String,Purchase> oldPurchases = previous.mPurchaseMap;
+        Map<String,Purchase> newPurchases = current.mPurchaseMap;
+        for (Purchase p : newPurchases.values()) {
+            Purchase old = oldPurchases.get(p.getSku());
+            if (old == null) mAddedPurchases.add(p);
+            else if (old != p && !samePurchase(old, p)) mChangedPurchases.add(p);
+        }
+        for (Purchase old : oldPurchases.values()) {
+            if (!newPurchases.containsKey(old.getSku())) mRemovedPurchases.add(old);
+        }
+
+        Map<String,SkuDetails> oldDetails = previous.mSkuMap;
+        Map<String,SkuDetails> newDetails = current.mSkuMap;
+        for (SkuDetails d : newDetails.values()) {
+            SkuDetails old = oldDetails.get(d.getSku());
+            if (old == null) mAddedSkuDetails.add(d);
+            else if (old != d && !old.mJson.equals(d.mJson)) mChangedSkuDetails.add(d);
+        }
+        for (SkuDetails old : oldDetails.values()) {
+            if (!newDetails.containsKey(old.getSku())) mRemovedSkuDetails.add(old);
+        }
+    }
+
+    private static boolean samePurchase(Purchase a, Purchase b) {
+        return a.getToken().equals(b.getToken())
+                && a.getOrderId().equals(b.getOrderId())
+                && a.getPurchaseState() == b.getPurchaseState()
+                && a.getPurchaseTime() == b.getPurchaseTime()
+                && a.getItemType().equals(b.getItemType());
+    }
+
+    /** Returns whether the two inventories hold the same purchases and details. */
+    public boolean isEmpty() {
+        return mAddedPurchases.isEmpty() && mRemovedPurchases.isEmpty() && mChangedPurchases.isEmpty()
+                && mAddedSkuDetails.isEmpty() && mRemovedSkuDetails.isEmpty() && mChangedSkuDetails.isEmpty();
+    }
+
+    /** Returns the purchases of products that were not owned before. */
+    public List<Purchase> getAddedPurchases() { return Collections.unmodifiableList(mAddedPurchases); }
+
+    /** Returns the purchases that are gone, for example because they were consumed. */
+    public List<Purchase> getRemovedPurchases() { return Collections.unmodifiableList(mRemovedPurchases); }
+
+    /** Returns the purchases that are still owned but have changed, such as a renewed subscription. */
+    public List<Purchase> getChangedPurchases() { return Collections.unmodifiableList(mChangedPurchases); }
+
+    /** Returns the listing details of products that had none before. */
+    public List<SkuDetails> getAddedSkuDetails() { return Collections.unmodifiableList(mAddedSkuDetails); }
+
+    /** Returns the listing details that are gone. */
+    public List<SkuDetails> getRemovedSkuDetails() { return Collections.unmodifiableList(mRemovedSkuDetails); }
+
+    /** Returns the listing details that have changed, such as a new price. */
+    public List<SkuDetails> getChangedSkuDetails() { return Collections.unmodifiableList(mChangedSkuDetails); }
+
+    @Override
+    public String toString() {
+        return "InventoryDiff(purchases +" + mAddedPurchases.size() + " -" + mRemovedPurchases.size()
+                + " ~" + mChangedPurchases.size() + ", details +" + mAddedSkuDetails.size()
+                + " -" + mRemovedSkuDetails.size() + " ~" + mChangedSkuDetails.size() + ")";
+    }
+}
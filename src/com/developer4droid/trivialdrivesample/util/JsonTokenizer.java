@@ -0,0 +1,299 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.developer4droid.trivialdrivesample.util;
+
+import org.json.JSONException;
+
+/**
+ * Minimal forward-only reader for the flat JSON objects returned by the
+ * billing service, used instead of {@link org.json.JSONObject} so that no
+ * tree is built. It walks the members of one object in a single pass:
+ * member names are matched against the caller's list of known names in
+ * place, and values can either be read straight away or skipped, with their
+ * position in the source string noted so they can be decoded later.
+ * Skipping unknown members allocates nothing.
+ *
+ * Typical use:
+ * <pre>
+ * reader.beginObject();
+ * while (reader.hasNext()) {
+ *     switch (reader.nextName(NAMES)) {
+ *         case 0: mSku = reader.nextString(); break;
+ *         default: reader.skipValue(); break;
+ *     }
+ * }
+ * reader.endObject();
+ * </pre>
+ */
+final class JsonTokenizer {
+    private final String mJson;
+    private final int mLength;
+    private int mPos = 0;
+    private boolean mFirst = true;
+    private boolean mEscaped;  // whether the last string skipped had escapes
+
+    // Span of the value returned by the last call to skipValue()
+    int mValueStart;
+    int mValueEnd;
+
+    JsonTokenizer(String json) {
+        mJson = json;
+        mLength = json.length();
+    }
+
+    /** Consumes the opening brace of the object. */
+    void beginObject() throws JSONException {
+        skipWhitespace();
+        expect('{');
+        mFirst = true;
+    }
+
+    /** Returns whether the object has another member, consuming the separating comma. */
+    boolean hasNext() throws JSONException {
+        skipWhitespace();
+        if (mPos < mLength && mJson.charAt(mPos) == '}') return false;
+        if (!mFirst) {
+            expect(',');
+            skipWhitespace();
+        }
+        mFirst = false;
+        return true;
+    }
+
+    /** Consumes the closing brace of the object and checks that nothing follows it. */
+    void endObject() throws JSONException {
+        skipWhitespace();
+        expect('}');
+        skipWhitespace();
+        if (mPos != mLength) throw syntaxError("Unexpected data after object");
+    }
+
+    /**
+     * Reads a member name and the colon after it.
+     *
+     * @param names the names the caller is interested in
+     * @return the index of the name in <var>names</var>, or -1 if it is not one of them
+     */
+    int nextName(String[] names) throws JSONException {
+        if (mPos >= mLength || mJson.charAt(mPos) != '"') throw syntaxError("Expected name");
+        int start = mPos;
+        skipString();
+        int end = mPos;
+        skipWhitespace();
+        expect(':');
+
+        if (mEscaped) {
+            // rare: compare the decoded name
+            String name = decodeString(mJson, start, end);
+            for (int i = 0; i < names.length; ++i) {
+                if (names[i].equals(name)) return i;
+            }
+            return -1;
+        }
+        int length = end - start - 2;
+        for (int i = 0; i < names.length; ++i) {
+            String name = names[i];
+            if (name.length() == length && mJson.regionMatches(start + 1, name, 0, length)) return i;
+        }
+        return -1;
+    }
+
+    /** Reads the next value as a string, as {@link org.json.JSONObject#optString} would. */
+    String nextString() throws JSONException {
+        skipValue();
+        return decodeString(mJson, mValueStart, mValueEnd);
+    }
+
+    /** Reads the next value as a long, as {@link org.json.JSONObject#optLong} would. */
+    long nextLong() throws JSONException {
+        skipValue();
+        return decodeLong(mJson, mValueStart, mValueEnd);
+    }
+
+    /**
+     * Skips over the next value, recording its span in {@link #mValueStart}
+     * and {@link #mValueEnd}. Strings keep their quotes in the span.
+     */
+    void skipValue() throws JSONException {
+        skipWhitespace();
+        if (mPos >= mLength) throw syntaxError("Expected value");
+        mValueStart = mPos;
+        char c = mJson.charAt(mPos);
+        if (c == '"') {
+            skipString();
+        }
+        else if (c == '{' || c == '[') {
+            skipNested();
+        }
+        else {
+            while (mPos < mLength && "{}[],: \t\r\n\"".indexOf(mJson.charAt(mPos)) < 0) mPos++;
+            if (mPos == mValueStart) throw syntaxError("Expected value");
+        }
+        mValueEnd = mPos;
+    }
+
+    /**
+     * Returns whether {@link #decodeString} would return <var>value</var> for
+     * the given span. Values without escapes are compared in place, without
+     * building a string.
+     */
+    static boolean stringEquals(String json, int start, int end, String value) {
+        if (json.charAt(start) != '"') {
+            return end - start == value.length() && json.regionMatches(start, value, 0, value.length());
+        }
+        int close = end - 1;
+        int backslash = json.indexOf('\\', start + 1);
+        if (backslash < 0 || backslash >= close) {
+            return close - start - 1 == value.length() && json.regionMatches(start + 1, value, 0, value.length());
+        }
+        return decodeString(json, start, end).equals(value);
+    }
+
+    /**
+     * Returns the value in the given span as a string, the way
+     * {@link org.json.JSONObject#optString} does: strings are unescaped,
+     * other values are returned as written.
+     */
+    static String decodeString(String json, int start, int end) {
+        if (json.charAt(start) != '"') return json.substring(start, end);
+
+        // Fast path: no escapes, so the value is a plain substring
+        int close = end - 1;
+        int backslash = json.indexOf('\\', start + 1);
+        if (backslash < 0 || backslash >= close) return json.substring(start + 1, close);
+
+        StringBuilder sb = new StringBuilder(close - start);
+        for (int i = start + 1; i < close; i++) {
+            char c = json.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            c = json.charAt(++i);
+            switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default: sb.append(c); break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the value in the given span as a long, the way
+     * {@link org.json.JSONObject#optLong} does, or 0 if it is not a number.
+     * Integers are exact over the whole range of long; plain integers of up
+     * to 18 digits are parsed in place, without allocating.
+     */
+    static long decodeLong(String json, int start, int end) {
+        if (json.charAt(start) == '"') {
+            start++;
+            end--;
+        }
+        if (start < end) {
+            int i = start;
+            boolean negative = json.charAt(i) == '-';
+            if (negative) i++;
+            int digitCount = end - i;
+            long value = 0;
+            boolean digits = digitCount > 0;
+            for (; digits && i < end; i++) {
+                char c = json.charAt(i);
+                if (c < '0' || c > '9') digits = false;
+                else value = value * 10 + (c - '0');
+            }
+            if (digits && digitCount <= 18) return negative ? -value : value;
+            if (digits) {
+                // too long to be sure it did not overflow; a double would lose precision
+                try {
+                    return Long.parseLong(json.substring(start, end));
+                } catch (NumberFormatException e) {
+                    // out of range for a long; fall back to a double, as org.json does
+                }
+            }
+        }
+        try {
+            return (long) Double.parseDouble(decodeString(json, start, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void skipString() throws JSONException {
+        mPos++; // opening quote
+        mEscaped = false;
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos++);
+            if (c == '"') return;
+            if (c == '\\') {
+                mEscaped = true;
+                if (mPos >= mLength) break;
+                if (mJson.charAt(mPos) == 'u') {
+                    if (mPos + 5 > mLength) break;
+                    for (int i = mPos + 1; i < mPos + 5; i++) {
+                        if (Character.digit(mJson.charAt(i), 16) < 0) throw syntaxError("Invalid escape");
+                    }
+                    mPos += 5;
+                }
+                else {
+                    mPos++;
+                }
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void skipNested() throws JSONException {
+        int depth = 0;
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c == '"') {
+                skipString();
+                continue;
+            }
+            mPos++;
+            if (c == '{' || c == '[') depth++;
+            else if (c == '}' || c == ']') {
+                if (--depth == 0) return;
+            }
+        }
+        throw syntaxError("Unterminated object or array");
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return;
+            mPos++;
+        }
+    }
+
+    private void expect(char c) throws JSONException {
+        if (mPos >= mLength || mJson.charAt(mPos) != c) throw syntaxError("Expected '" + c + "'");
+        mPos++;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + mPos + " of " + mJson);
+    }
+}
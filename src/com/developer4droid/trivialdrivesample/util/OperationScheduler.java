@@ -0,0 +1,195 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.developer4droid.trivialdrivesample.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Queues the asynchronous operations of an {@link IabHelper} and starts each
+ * one as soon as nothing it conflicts with is running. Operations that do
+ * not conflict run at the same time.
+ *
+ * The queue is kept in order of priority: purchase flows first, then
+ * consumptions, then inventory refreshes, and in the order they were
+ * submitted within each kind. An operation never starts while one it
+ * conflicts with is ahead of it in the queue. A consumption is queued ahead
+ * of any refresh, even one submitted earlier, so a stream of refreshes cannot
+ * starve a consumption; a stream of consumptions can hold refreshes back.
+ *
+ * Purchase flows are started on the main thread; the others are run by the
+ * background executor. An operation is running until {@link #finish} is
+ * called for it, which for a purchase flow happens when its activity result
+ * arrives.
+ */
+final class OperationScheduler {
+    // Kinds of operation, in order of priority
+    static final int PURCHASE = 0;
+    static final int CONSUME = 1;
+    static final int REFRESH = 2;
+
+    private static final String[] KIND_NAMES = { "purchase", "consume", "refresh" };
+
+    /** An operation to schedule. {@link #run} does its work, or starts it. */
+    abstract static class Operation implements Runnable {
+        final int mKind;
+        final String mName;
+
+        Operation(int kind, String name) {
+            mKind = kind;
+            mName = name;
+        }
+
+        /**
+         * Called instead of {@link #run} if the background executor refuses the
+         * operation, for example because the helper has been disposed of, or by
+         * the owner for the operations that {@link #clear} dropped. The
+         * operation is not running by then. Must tell whoever waits for it.
+         */
+        void rejected() { }
+
+        @Override
+        public String toString() {
+            return KIND_NAMES[mKind] + ": " + mName;
+        }
+    }
+
+    private final Handler mMainHandler;
+    private final Executor mBackground;
+
+    // Guarded by "this"
+    private final List<Operation> mPending = new ArrayList<Operation>();  // in start order
+    private final List<Operation> mRunning = new ArrayList<Operation>();
+
+    OperationScheduler(Handler mainHandler, Executor background) {
+        mMainHandler = mainHandler;
+        mBackground = background;
+    }
+
+    /** Returns whether two kinds of operation must not run at the same time. */
+    static boolean conflicts(int a, int b) {
+        if (a > b) return conflicts(b, a);
+        // one purchase flow at a time: the helper tracks only one request code. A
+        // refresh may overlap one, as queryInventory keeps purchases added meanwhile.
+        if (a == PURCHASE) return b == PURCHASE;
+        // a refresh must see the inventory either before or after a consumption
+        return b == REFRESH;
+    }
+
+    /** Queues an operation, starting it right away if nothing it conflicts with is in the way. */
+    void submit(Operation op) {
+        synchronized (this) {
+            // insert after everything of the same or higher priority
+            int i = mPending.size();
+            while (i > 0 && mPending.get(i - 1).mKind > op.mKind) --i;
+            mPending.add(i, op);
+        }
+        startReady();
+    }
+
+    /** Marks an operation as done, which may let queued operations start. */
+    void finish(Operation op) {
+        synchronized (this) {
+            if (!mRunning.remove(op)) return;
+        }
+        startReady();
+    }
+
+    /**
+     * Drops all queued operations; they will never run, and the caller should
+     * call {@link Operation#rejected} on each. Running ones are unaffected.
+     */
+    synchronized List<Operation> clear() {
+        List<Operation> dropped = new ArrayList<Operation>(mPending);
+        mPending.clear();
+        return dropped;
+    }
+
+    /** Returns the first running operation of the given kind, or null if there is none. */
+    synchronized Operation running(int kind) {
+        for (Operation op : mRunning) {
+            if (op.mKind == kind) return op;
+        }
+        return null;
+    }
+
+    /** Returns the queued operations of the given kind, in start order. */
+    synchronized List<Operation> pending(int kind) {
+        List<Operation> result = new ArrayList<Operation>();
+        for (Operation op : mPending) {
+            if (op.mKind == kind) result.add(op);
+        }
+        return result;
+    }
+
+    // Starts every queued operation that conflicts with nothing running and
+    // with nothing queued ahead of it
+    private void startReady() {
+        List<Operation> ready = new ArrayList<Operation>();
+        synchronized (this) {
+            List<Operation> blocked = new ArrayList<Operation>();
+            for (Iterator<Operation> it = mPending.iterator(); it.hasNext(); ) {
+                Operation op = it.next();
+                if (conflictsWithAny(op, mRunning) || conflictsWithAny(op, blocked)) {
+                    blocked.add(op);
+                    continue;
+                }
+                it.remove();
+                mRunning.add(op);
+                ready.add(op);
+            }
+        }
+        List<Operation> rejected = null;
+        for (Operation op : ready) {
+            if (op.mKind != PURCHASE) {
+                try {
+                    mBackground.execute(op);
+                }
+                catch (RejectedExecutionException e) {
+                    synchronized (this) {
+                        mRunning.remove(op);
+                    }
+                    if (rejected == null) rejected = new ArrayList<Operation>();
+                    rejected.add(op);
+                }
+            }
+            else if (Looper.myLooper() == Looper.getMainLooper()) {
+                op.run();
+            }
+            else {
+                mMainHandler.post(op);
+            }
+        }
+        if (rejected != null) {
+            for (Operation op : rejected) op.rejected();
+            // what they blocked can start now, or be rejected in turn
+            startReady();
+        }
+    }
+
+    private static boolean conflictsWithAny(Operation op, List<Operation> others) {
+        for (Operation other : others) {
+            if (conflicts(op.mKind, other.mKind)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,81 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.developer4droid.trivialdrivesample.util;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Processes pages of results on an executor while the caller fetches the
+ * next ones, handing the results back in page order. At most a fixed number
+ * of pages wait at a time, so memory use stays bounded however many pages
+ * there are.
+ *
+ * The executor must not be the one the caller itself runs on, or the pages
+ * may sit in its queue until the caller takes them and runs them in turn,
+ * and nothing overlaps. A page that no thread has started by the time it is
+ * taken, or that the executor rejects, is processed by the caller.
+ */
+final class PagePipeline<T> {
+    private final Executor mExecutor;
+    private final int mMaxInFlight;
+    private final LinkedList<FutureTask<T>> mPages = new LinkedList<FutureTask<T>>();
+
+    PagePipeline(Executor executor, int maxInFlight) {
+        mExecutor = executor;
+        mMaxInFlight = maxInFlight;
+    }
+
+    /** Returns whether as many pages are waiting as allowed; take one before adding more. */
+    boolean isFull() {
+        return mPages.size() >= mMaxInFlight;
+    }
+
+    boolean isEmpty() {
+        return mPages.isEmpty();
+    }
+
+    /** Starts processing a page in the background. */
+    void add(Callable<T> page) {
+        FutureTask<T> task = new FutureTask<T>(page);
+        mPages.addLast(task);
+        try {
+            mExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            // takeOldest runs it
+        }
+    }
+
+    /**
+     * Removes the oldest page, running it here if no thread has started it,
+     * and returns its task, to wait for with {@link FutureTask#get}.
+     */
+    FutureTask<T> takeOldest() {
+        FutureTask<T> task = mPages.removeFirst();
+        task.run();
+        return task;
+    }
+
+    /** Drops the waiting pages; those no thread has started never run. */
+    void cancel() {
+        for (FutureTask<T> task : mPages) task.cancel(false);
+        mPages.clear();
+    }
+}
@@ -0,0 +1,271 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.developer4droid.trivialdrivesample.util;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Verifies signatures against a single, already parsed public key.
+ * The key is decoded once, when the verifier is created, and every thread
+ * that uses the verifier keeps its own {@link Signature} object, initialized
+ * for verification with that key. Instances are safe to share between threads.
+ *
+ * Obtain instances through {@link Security#getVerifier}, which caches
+ * verifiers by key and algorithm, or register a {@link #factory} for another
+ * algorithm with {@link Security#registerAlgorithm}.
+ */
+public class PublicKeyVerifier implements SignatureVerifier {
+    private static final String TAG = "IABUtil/PublicKeyVerifier";
+
+    final String mBase64PublicKey;
+    final PublicKey mPublicKey;
+    final String mAlgorithm;
+
+    // Per-thread Signature and scratch buffers; Signature objects are not thread-safe
+    private final ThreadLocal<Scratch> mScratch = new ThreadLocal<Scratch>();
+
+    PublicKeyVerifier(String base64PublicKey, PublicKey publicKey, String algorithm) {
+        mBase64PublicKey = base64PublicKey;
+        mPublicKey = publicKey;
+        mAlgorithm = algorithm;
+    }
+
+    /**
+     * Returns a factory that parses X.509-encoded keys of the given key algorithm
+     * and verifies with the given signature algorithm.
+     *
+     * @param keyAlgorithm the key algorithm, such as "RSA" or "EC"
+     * @param signatureAlgorithm the signature algorithm, such as "SHA256withRSA"
+     */
+    public static SignatureVerifier.Factory factory(final String keyAlgorithm,
+                                                    final String signatureAlgorithm) {
+        return new SignatureVerifier.Factory() {
+            public SignatureVerifier create(String base64PublicKey) {
+                return new PublicKeyVerifier(base64PublicKey,
+                        Security.generatePublicKey(base64PublicKey, keyAlgorithm), signatureAlgorithm);
+            }
+        };
+    }
+
+    /** Returns the public key this verifier checks signatures against. */
+    public PublicKey getPublicKey() { return mPublicKey; }
+
+    /** Returns the signature algorithm, such as "SHA1withRSA". */
+    public String getAlgorithm() { return mAlgorithm; }
+
+    /** Returns the base64-encoded public key. */
+    public String getKeyId() { return mBase64PublicKey; }
+
+    /**
+     * Verifies that the signature from the server matches the computed
+     * signature on the data. Returns true if the data is correctly signed.
+     * The data is signed in its UTF-8 encoding.
+     *
+     * @param signedData signed data from server
+     * @param signature server signature, in base64
+     * @return true if the data and signature match
+     */
+    public boolean verify(String signedData, String signature) {
+        return verify(signedData, signature, true);
+    }
+
+    // logMismatch is false when a mismatch is expected, as when trying each key of a SignatureKeySet
+    boolean verify(String signedData, String signature, boolean logMismatch) {
+        Scratch scratch = scratch();
+        int sigLength;
+        try {
+            // decoded straight from the string's chars into the reusable buffer
+            byte[] sigBuffer = scratch.signatureBuffer(Base64.maxDecodedLength(signature.length()));
+            sigLength = Base64.decodeInto(signature, 0, signature.length(), sigBuffer, 0,
+                    Base64.DECODABET);
+        } catch (Base64DecoderException e) {
+            Log.e(TAG, "Base64 decoding failed.");
+            return false;
+        }
+        int len = scratch.encode(signedData);
+        return verify(scratch, scratch.mData, 0, len, scratch.mSig, 0, sigLength, logMismatch);
+    }
+
+    /**
+     * Verifies a signature over a range of already encoded data. Neither array
+     * is copied or retained, and nothing is allocated once the calling thread
+     * has verified its first signature.
+     *
+     * @param signedData the signed data, UTF-8 encoded
+     * @param dataOffset offset of the signed data in signedData
+     * @param dataLength length of the signed data
+     * @param signature the raw (base64-decoded) signature
+     * @param sigOffset offset of the signature in signature
+     * @param sigLength length of the signature
+     * @return true if the data and signature match
+     */
+    public boolean verify(byte[] signedData, int dataOffset, int dataLength,
+                          byte[] signature, int sigOffset, int sigLength) {
+        return verify(signedData, dataOffset, dataLength, signature, sigOffset, sigLength, true);
+    }
+
+    boolean verify(byte[] signedData, int dataOffset, int dataLength,
+                   byte[] signature, int sigOffset, int sigLength, boolean logMismatch) {
+        return verify(scratch(), signedData, dataOffset, dataLength, signature, sigOffset, sigLength,
+                logMismatch);
+    }
+
+    /**
+     * Verifies a signature over the remaining bytes of signedData. Both buffers
+     * may be heap or direct buffers, and slices of larger buffers; direct buffers
+     * are staged through a reusable per-thread buffer, so nothing is allocated
+     * per call. Both buffers' positions are advanced to their limits.
+     *
+     * @param signedData the signed data, UTF-8 encoded
+     * @param signature the raw (base64-decoded) signature
+     * @return true if the data and signature match
+     */
+    public boolean verify(ByteBuffer signedData, ByteBuffer signature) {
+        return verify(signedData, signature, true);
+    }
+
+    boolean verify(ByteBuffer signedData, ByteBuffer signature, boolean logMismatch) {
+        Scratch scratch = scratch();
+        int dataLength = signedData.remaining();
+        byte[] data;
+        int dataOffset;
+        if (signedData.hasArray()) {
+            data = signedData.array();
+            dataOffset = signedData.arrayOffset() + signedData.position();
+            signedData.position(signedData.limit());
+        }
+        else {
+            data = scratch.dataBuffer(dataLength);
+            dataOffset = 0;
+            signedData.get(data, 0, dataLength);
+        }
+
+        int sigLength = signature.remaining();
+        byte[] sig;
+        int sigOffset;
+        if (signature.hasArray()) {
+            sig = signature.array();
+            sigOffset = signature.arrayOffset() + signature.position();
+            signature.position(signature.limit());
+        }
+        else {
+            sig = scratch.signatureBuffer(sigLength);
+            sigOffset = 0;
+            signature.get(sig, 0, sigLength);
+        }
+        return verify(scratch, data, dataOffset, dataLength, sig, sigOffset, sigLength, logMismatch);
+    }
+
+    private boolean verify(Scratch scratch, byte[] signedData, int dataOffset, int dataLength,
+                           byte[] signature, int sigOffset, int sigLength, boolean logMismatch) {
+        try {
+            Signature sig = scratch.signature(this);
+            sig.update(signedData, dataOffset, dataLength);
+            if (!sig.verify(signature, sigOffset, sigLength)) {
+                if (logMismatch) Log.e(TAG, "Signature verification failed.");
+                return false;
+            }
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "NoSuchAlgorithmException.");
+        } catch (InvalidKeyException e) {
+            Log.e(TAG, "Invalid key specification.");
+        } catch (SignatureException e) {
+            Log.e(TAG, "Signature exception.");
+            // the Signature may be left half-updated; start over next time
+            scratch.mSignature = null;
+        }
+        return false;
+    }
+
+    private Scratch scratch() {
+        Scratch scratch = mScratch.get();
+        if (scratch == null) {
+            scratch = new Scratch();
+            mScratch.set(scratch);
+        }
+        return scratch;
+    }
+
+    // Per-thread state. verify() resets the Signature to its freshly initialized
+    // state, so it can be reused for the next call on the same thread.
+    static final class Scratch {
+        Signature mSignature;
+        byte[] mData = new byte[1024];
+        byte[] mSig = new byte[512];
+
+        Signature signature(PublicKeyVerifier owner)
+                throws NoSuchAlgorithmException, InvalidKeyException {
+            if (mSignature == null) {
+                mSignature = Signature.getInstance(owner.mAlgorithm);
+                mSignature.initVerify(owner.mPublicKey);
+            }
+            return mSignature;
+        }
+
+        byte[] dataBuffer(int length) {
+            if (mData.length < length) mData = new byte[Math.max(length, mData.length * 2)];
+            return mData;
+        }
+
+        byte[] signatureBuffer(int length) {
+            if (mSig.length < length) mSig = new byte[length];
+            return mSig;
+        }
+
+        // Encodes s as UTF-8 into mData and returns the number of bytes written.
+        // Unpaired surrogates become '?', as with String.getBytes().
+        int encode(String s) {
+            int n = s.length();
+            byte[] out = dataBuffer(n * 3);
+            int o = 0;
+            for (int i = 0; i < n; ++i) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    out[o++] = (byte) c;
+                }
+                else if (c < 0x800) {
+                    out[o++] = (byte) (0xc0 | (c >> 6));
+                    out[o++] = (byte) (0x80 | (c & 0x3f));
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < n
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    out[o++] = (byte) (0xf0 | (cp >> 18));
+                    out[o++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    out[o++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    out[o++] = (byte) (0x80 | (cp & 0x3f));
+                }
+                else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    out[o++] = (byte) '?';
+                }
+                else {
+                    out[o++] = (byte) (0xe0 | (c >> 12));
+                    out[o++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    out[o++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return o;
+        }
+    }
+}
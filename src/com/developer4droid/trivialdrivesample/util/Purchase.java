@@ -16,48 +16,272 @@
 package com.developer4droid.trivialdrivesample.util;
 
 import org.json.JSONException;
-import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Represents an in-app billing purchase.
+ *
+ * The purchase JSON is scanned once, in the constructor, to check it and to
+ * note where each field's value lies; a field is only decoded the first time
+ * its getter is called.
+ *
+ * Once the signature has been checked, the JSON can be compressed or dropped
+ * to save memory; see {@link IabHelper#setPurchaseJsonRetention}. All fields
+ * are decoded before that happens.
  */
 public class Purchase {
+    // Fields located by the constructor, and the JSON names they are read from
+    private static final int FIELD_ORDER_ID = 0;
+    private static final int FIELD_PACKAGE_NAME = 1;
+    private static final int FIELD_PRODUCT_ID = 2;
+    private static final int FIELD_PURCHASE_TIME = 3;
+    private static final int FIELD_PURCHASE_STATE = 4;
+    private static final int FIELD_DEVELOPER_PAYLOAD = 5;
+    private static final int FIELD_TOKEN = 6;
+    private static final int FIELD_PURCHASE_TOKEN = 7;
+    private static final String[] FIELD_NAMES = {
+        "orderId", "packageName", "productId", "purchaseTime",
+        "purchaseState", "developerPayload", "token", "purchaseToken"
+    };
+
     String mItemType;  // ITEM_TYPE_INAPP or ITEM_TYPE_SUBS
+    String mOriginalJson;  // null once compressed or dropped
+    byte[] mCompressedJson;  // the deflated UTF-8 JSON, if it was compressed
+    String mSignature;
+
+    // Start and end of each field's value in mOriginalJson; -1 if absent.
+    // Null once all the fields have been decoded by materialize().
+    private int[] mSpans;
+
+    // Decoded on first use; null until then
     String mOrderId;
     String mPackageName;
     String mSku;
-    long mPurchaseTime;
-    int mPurchaseState;
     String mDeveloperPayload;
     String mToken;
-    String mOriginalJson;
-    String mSignature;
+
+    // Set by materialize()
+    long mPurchaseTime;
+    int mPurchaseState;
+
+    /**
+     * Creates an empty purchase whose fields are all set by the caller, as
+     * {@link InventoryCodec} does; the JSON is not needed to read them.
+     */
+    Purchase() {
+        mSpans = null;
+    }
 
     public Purchase(String itemType, String jsonPurchaseInfo, String signature) throws JSONException {
         mItemType = itemType;
         mOriginalJson = jsonPurchaseInfo;
-        JSONObject o = new JSONObject(mOriginalJson);
-        mOrderId = o.optString("orderId");
-        mPackageName = o.optString("packageName");
-        mSku = o.optString("productId");
-        mPurchaseTime = o.optLong("purchaseTime");
-        mPurchaseState = o.optInt("purchaseState");
-        mDeveloperPayload = o.optString("developerPayload");
-        mToken = o.optString("token", o.optString("purchaseToken"));
         mSignature = signature;
+        mSpans = scan(jsonPurchaseInfo);
+    }
+
+    // Checks the JSON and returns the start and end of each field's value
+    private static int[] scan(String json) throws JSONException {
+        int[] spans = new int[FIELD_NAMES.length * 2];
+        Arrays.fill(spans, -1);
+        JsonTokenizer reader = new JsonTokenizer(json);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int field = reader.nextName(FIELD_NAMES);
+            reader.skipValue();
+            if (field >= 0) {
+                // like JSONObject, the last occurrence of a name wins
+                spans[field * 2] = reader.mValueStart;
+                spans[field * 2 + 1] = reader.mValueEnd;
+            }
+        }
+        reader.endObject();
+        return spans;
+    }
+
+    /**
+     * Returns whether the fields agree with the purchase JSON, for purchases
+     * whose fields were set separately from it, as {@link InventoryCodec}
+     * does. The JSON is scanned once and each value is compared where it
+     * lies, so values without escapes are never copied out.
+     *
+     * @throws JSONException if the JSON is malformed
+     */
+    boolean fieldsMatchJson() throws JSONException {
+        String json = getOriginalJson();
+        if (json == null) return false;
+        int[] spans = scan(json);
+        int token = spans[FIELD_TOKEN * 2] >= 0 ? FIELD_TOKEN : FIELD_PURCHASE_TOKEN;
+        return stringMatches(json, spans, FIELD_PRODUCT_ID, getSku())
+                && stringMatches(json, spans, token, getToken())
+                && stringMatches(json, spans, FIELD_ORDER_ID, getOrderId())
+                && stringMatches(json, spans, FIELD_PACKAGE_NAME, getPackageName())
+                && stringMatches(json, spans, FIELD_DEVELOPER_PAYLOAD, getDeveloperPayload())
+                && numberAt(json, spans, FIELD_PURCHASE_TIME) == getPurchaseTime()
+                && (int) numberAt(json, spans, FIELD_PURCHASE_STATE) == getPurchaseState();
+    }
+
+    // Whether a string field, or "" if it is absent, equals value; see string()
+    private static boolean stringMatches(String json, int[] spans, int field, String value) {
+        int start = spans[field * 2];
+        if (start < 0) return value.length() == 0;
+        return JsonTokenizer.stringEquals(json, start, spans[field * 2 + 1], value);
+    }
+
+    // A numeric field, or 0 if it is absent; see number()
+    private static long numberAt(String json, int[] spans, int field) {
+        int start = spans[field * 2];
+        if (start < 0) return 0;
+        return JsonTokenizer.decodeLong(json, start, spans[field * 2 + 1]);
     }
 
     public String getItemType() { return mItemType; }
-    public String getOrderId() { return mOrderId; }
-    public String getPackageName() { return mPackageName; }
-    public String getSku() { return mSku; }
-    public long getPurchaseTime() { return mPurchaseTime; }
-    public int getPurchaseState() { return mPurchaseState; }
-    public String getDeveloperPayload() { return mDeveloperPayload; }
-    public String getToken() { return mToken; }
-    public String getOriginalJson() { return mOriginalJson; }
+
+    public String getOrderId() {
+        if (mOrderId == null) mOrderId = string(FIELD_ORDER_ID);
+        return mOrderId;
+    }
+
+    public String getPackageName() {
+        if (mPackageName == null) mPackageName = string(FIELD_PACKAGE_NAME);
+        return mPackageName;
+    }
+
+    public String getSku() {
+        if (mSku == null) mSku = string(FIELD_PRODUCT_ID);
+        return mSku;
+    }
+
+    public long getPurchaseTime() {
+        return mSpans == null ? mPurchaseTime : number(FIELD_PURCHASE_TIME);
+    }
+
+    public int getPurchaseState() {
+        return mSpans == null ? mPurchaseState : (int) number(FIELD_PURCHASE_STATE);
+    }
+
+    public String getDeveloperPayload() {
+        if (mDeveloperPayload == null) mDeveloperPayload = string(FIELD_DEVELOPER_PAYLOAD);
+        return mDeveloperPayload;
+    }
+
+    public String getToken() {
+        if (mToken == null) {
+            mToken = string(mSpans[FIELD_TOKEN * 2] >= 0 ? FIELD_TOKEN : FIELD_PURCHASE_TOKEN);
+        }
+        return mToken;
+    }
+
+    /**
+     * Returns the purchase JSON as sent by the billing service, or null if it
+     * was dropped after verification. Compressed JSON is expanded on each call.
+     */
+    public String getOriginalJson() {
+        if (mOriginalJson != null || mCompressedJson == null) return mOriginalJson;
+        return inflate(mCompressedJson);
+    }
+
     public String getSignature() { return mSignature; }
 
+    /**
+     * Replaces the item type, package name and product ID with the pool's
+     * canonical instances, so that purchases of the same product share them.
+     */
+    void intern(StringPool pool) {
+        mItemType = pool.intern(mItemType);
+        mPackageName = pool.intern(getPackageName());
+        mSku = pool.intern(getSku());
+    }
+
+    /** Decodes every field, so that the JSON is no longer needed to read them. */
+    void materialize() {
+        if (mSpans == null) return;
+        getOrderId();
+        getPackageName();
+        getSku();
+        getDeveloperPayload();
+        getToken();
+        mPurchaseTime = getPurchaseTime();
+        mPurchaseState = getPurchaseState();
+        mSpans = null;
+    }
+
+    /** Replaces the JSON with a deflated copy, which {@link #getOriginalJson} expands. */
+    void compressJson() {
+        if (mOriginalJson == null) return;
+        materialize();
+        mCompressedJson = deflate(mOriginalJson);
+        mOriginalJson = null;
+    }
+
+    /** Discards the JSON; {@link #getOriginalJson} returns null afterwards. */
+    void dropJson() {
+        materialize();
+        mOriginalJson = null;
+        mCompressedJson = null;
+    }
+
+    // Decodes a string field, or returns "" if it is absent, as JSONObject.optString does
+    private String string(int field) {
+        int start = mSpans[field * 2];
+        if (start < 0) return "";
+        return JsonTokenizer.decodeString(mOriginalJson, start, mSpans[field * 2 + 1]);
+    }
+
+    // Decodes a numeric field, or returns 0 if it is absent, as JSONObject.optLong does
+    private long number(int field) {
+        int start = mSpans[field * 2];
+        if (start < 0) return 0;
+        return JsonTokenizer.decodeLong(mOriginalJson, start, mSpans[field * 2 + 1]);
+    }
+
+    private static byte[] deflate(String json) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(json.getBytes("UTF-8"));
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(json.length() / 2);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);  // UTF-8 is always supported
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String inflate(byte[] compressed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+            byte[] buffer = new byte[512];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) throw new IllegalStateException("Truncated purchase JSON");
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), "UTF-8");
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e);  // we compressed it ourselves
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
     @Override
-    public String toString() { return "PurchaseInfo(type:" + mItemType + "):" + mOriginalJson; }
+    public String toString() {
+        String json = getOriginalJson();
+        return "PurchaseInfo(type:" + mItemType + "):" + (json != null ? json : mSku);
+    }
 }
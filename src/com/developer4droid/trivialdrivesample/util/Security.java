@@ -19,6 +19,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 
+import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
@@ -27,6 +28,17 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Security-related methods. For a secure implementation, all of this code
@@ -40,8 +52,39 @@ import java.security.spec.X509EncodedKeySpec;
 public class Security {
     private static final String TAG = "IABUtil/Security";
 
+    /** The signature algorithm Google Play uses for purchase data. */
+    public static final String ALGORITHM_SHA1_RSA = "SHA1withRSA";
+    public static final String ALGORITHM_SHA256_RSA = "SHA256withRSA";
+
     private static final String KEY_FACTORY_ALGORITHM = "RSA";
-    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+    private static final String SIGNATURE_ALGORITHM = ALGORITHM_SHA1_RSA;
+    private static final String SIGNED_DATA_CHARSET = "UTF-8";
+
+    // Registered verifier factories, by signature algorithm name
+    private static final ConcurrentHashMap<String, SignatureVerifier.Factory> sFactories =
+            new ConcurrentHashMap<String, SignatureVerifier.Factory>();
+
+    // Parsed keys, by algorithm and key, so that each key is only parsed once.
+    // Apps use a handful of keys; the map is cleared if it ever grows past the limit.
+    private static final int MAX_CACHED_VERIFIERS = 32;
+    private static final ConcurrentHashMap<String, SignatureVerifier> sVerifiers =
+            new ConcurrentHashMap<String, SignatureVerifier>();
+
+    static {
+        registerAlgorithm(ALGORITHM_SHA1_RSA,
+                PublicKeyVerifier.factory(KEY_FACTORY_ALGORITHM, ALGORITHM_SHA1_RSA));
+        registerAlgorithm(ALGORITHM_SHA256_RSA,
+                PublicKeyVerifier.factory(KEY_FACTORY_ALGORITHM, ALGORITHM_SHA256_RSA));
+    }
+
+    // Default number of verification results to remember across inventory refreshes
+    private static final int DEFAULT_VERIFICATION_CACHE_SIZE = 512;
+
+    private static final VerificationCache sVerificationCache =
+            new VerificationCache(DEFAULT_VERIFICATION_CACHE_SIZE);
+
+    // Batches smaller than this are verified on the calling thread
+    private static final int MIN_PARALLEL_BATCH = 8;
 
     /**
      * Verifies that the data was signed with the given signature, and returns
@@ -60,8 +103,7 @@ public class Security {
 
         boolean verified = false;
         if (!TextUtils.isEmpty(signature)) {
-            PublicKey key = Security.generatePublicKey(base64PublicKey);
-            verified = Security.verify(key, signedData, signature);
+            verified = sVerificationCache.verify(getVerifier(base64PublicKey), signedData, signature);
             if (!verified) {
                 Log.w(TAG, "signature does not match data.");
                 return false;
@@ -70,6 +112,210 @@ public class Security {
         return true;
     }
 
+    /**
+     * Same as {@link #verifyPurchase(String, String, String)}, but checks the
+     * signature with the given verifier, such as a {@link SignatureKeySet} or a
+     * verifier for another algorithm obtained from {@link #getVerifier(String, String)}.
+     */
+    public static boolean verifyPurchase(SignatureVerifier verifier, String signedData, String signature) {
+        if (signedData == null) {
+            Log.e(TAG, "data is null");
+            return false;
+        }
+
+        if (!TextUtils.isEmpty(signature)) {
+            if (!sVerificationCache.verify(verifier, signedData, signature)) {
+                Log.w(TAG, "signature does not match data.");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verifies a batch of purchases, as returned by one getPurchases() call.
+     * Entry i of the result is set if {@link #verifyPurchase} would have returned
+     * true for signedData.get(i) and signatures.get(i). Large batches are split
+     * into chunks that are verified on a pool with one thread per CPU core; the
+     * calling thread works on chunks too, so this never waits on an idle pool.
+     *
+     * @param base64PublicKey the base64-encoded public key to use for verifying.
+     * @param signedData the signed JSON strings
+     * @param signatures the signatures, in the same order as signedData
+     * @return the indices of the purchases that passed verification
+     * @throws IllegalArgumentException if base64PublicKey is invalid
+     */
+    public static BitSet verifyAll(String base64PublicKey, final List<String> signedData,
+                                   final List<String> signatures) {
+        SignatureVerifier verifier = null;
+        for (int i = 0; i < signatures.size() && verifier == null; ++i) {
+            if (!TextUtils.isEmpty(signatures.get(i))) verifier = getVerifier(base64PublicKey);
+        }
+        return verifyAll(verifier, signedData, signatures);
+    }
+
+    /**
+     * Same as {@link #verifyAll(String, List, List)}, but checks the signatures
+     * with the given verifier.
+     */
+    public static BitSet verifyAll(SignatureVerifier verifier, final List<String> signedData,
+                                   final List<String> signatures) {
+        final int count = signedData.size();
+        final boolean[] verified = new boolean[count];
+        final SignatureVerifier verifier_f = verifier;
+
+        int chunks = Math.min(VerifyPool.THREADS * 4, count / MIN_PARALLEL_BATCH);
+        if (chunks <= 1) {
+            verifyRange(verifier_f, signedData, signatures, verified, 0, count);
+        }
+        else {
+            List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(chunks);
+            for (int c = 0; c < chunks; ++c) {
+                final int from = (int) ((long) count * c / chunks);
+                final int to = (int) ((long) count * (c + 1) / chunks);
+                FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+                    public void run() {
+                        verifyRange(verifier_f, signedData, signatures, verified, from, to);
+                    }
+                }, null);
+                tasks.add(task);
+                VerifyPool.EXECUTOR.execute(task);
+            }
+            // Help out: running a task that a pool thread already took is a no-op
+            for (FutureTask<Void> task : tasks) task.run();
+            for (FutureTask<Void> task : tasks) awaitTask(task);
+        }
+
+        BitSet result = new BitSet(count);
+        for (int i = 0; i < count; ++i) {
+            if (verified[i]) result.set(i);
+        }
+        return result;
+    }
+
+    static void verifyRange(SignatureVerifier verifier, List<String> signedData,
+                            List<String> signatures, boolean[] verified, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            String data = signedData.get(i);
+            String signature = signatures.get(i);
+            if (data == null) {
+                Log.e(TAG, "data is null");
+            }
+            else if (TextUtils.isEmpty(signature)) {
+                verified[i] = true;
+            }
+            else if (sVerificationCache.verify(verifier, data, signature)) {
+                verified[i] = true;
+            }
+            else {
+                Log.w(TAG, "signature does not match data.");
+            }
+        }
+    }
+
+    static void awaitTask(FutureTask<?> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    task.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the pool that {@link #verifyAll} spreads large batches over, for
+     * other verification work that should not wait behind blocking calls.
+     */
+    static Executor getVerifyExecutor() {
+        return VerifyPool.EXECUTOR;
+    }
+
+    // Lazily created pool for batch verification (initialized on first use)
+    private static class VerifyPool {
+        static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS,
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "IabVerify-" + mCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Returns the cache of successful verifications used by {@link #verifyPurchase} and
+     * {@link #verifyAll}. Use it to read the hit/miss counters or to change its size
+     * ({@link VerificationCache#setMaxSize}; 0 turns caching off).
+     */
+    public static VerificationCache getVerificationCache() {
+        return sVerificationCache;
+    }
+
+    /**
+     * Registers the verifier factory for a signature algorithm, replacing any
+     * previous registration. SHA1withRSA and SHA256withRSA are registered by default.
+     *
+     * @param algorithm the signature algorithm name, as passed to {@link #getVerifier(String, String)}
+     * @param factory creates verifiers for that algorithm
+     */
+    public static void registerAlgorithm(String algorithm, SignatureVerifier.Factory factory) {
+        sFactories.put(algorithm, factory);
+        // Drop verifiers created by the previous factory
+        for (String key : sVerifiers.keySet()) {
+            if (key.startsWith(algorithm + " ")) sVerifiers.remove(key);
+        }
+    }
+
+    /**
+     * Returns a SHA1withRSA verifier for the given Base64-encoded public key.
+     * See {@link #getVerifier(String, String)}.
+     *
+     * @param base64PublicKey the base64-encoded public key to use for verifying.
+     * @throws IllegalArgumentException if base64PublicKey is invalid
+     */
+    public static SignatureVerifier getVerifier(String base64PublicKey) {
+        return getVerifier(base64PublicKey, SIGNATURE_ALGORITHM);
+    }
+
+    /**
+     * Returns a verifier for the given Base64-encoded public key and signature
+     * algorithm. The key is only parsed the first time it is seen; later calls
+     * with the same key and algorithm return the cached verifier.
+     *
+     * @param base64PublicKey the base64-encoded public key to use for verifying.
+     * @param algorithm a signature algorithm registered with {@link #registerAlgorithm}
+     * @throws IllegalArgumentException if base64PublicKey is invalid or the
+     *     algorithm is not registered
+     */
+    public static SignatureVerifier getVerifier(String base64PublicKey, String algorithm) {
+        String cacheKey = algorithm + " " + base64PublicKey;
+        SignatureVerifier verifier = sVerifiers.get(cacheKey);
+        if (verifier == null) {
+            SignatureVerifier.Factory factory = sFactories.get(algorithm);
+            if (factory == null) {
+                throw new IllegalArgumentException("No verifier registered for algorithm " + algorithm);
+            }
+            verifier = factory.create(base64PublicKey);
+            if (sVerifiers.size() >= MAX_CACHED_VERIFIERS) sVerifiers.clear();
+            sVerifiers.put(cacheKey, verifier);
+        }
+        return verifier;
+    }
+
     /**
      * Generates a PublicKey instance from a string containing the
      * Base64-encoded public key.
@@ -78,9 +324,21 @@ public class Security {
      * @throws IllegalArgumentException if encodedPublicKey is invalid
      */
     public static PublicKey generatePublicKey(String encodedPublicKey) {
+        return generatePublicKey(encodedPublicKey, KEY_FACTORY_ALGORITHM);
+    }
+
+    /**
+     * Generates a PublicKey instance of the given key algorithm from a string
+     * containing the Base64-encoded, X.509-encoded public key.
+     *
+     * @param encodedPublicKey Base64-encoded public key
+     * @param keyAlgorithm the key algorithm, such as "RSA"
+     * @throws IllegalArgumentException if encodedPublicKey is invalid
+     */
+    public static PublicKey generatePublicKey(String encodedPublicKey, String keyAlgorithm) {
         try {
             byte[] decodedKey = Base64.decode(encodedPublicKey);
-            KeyFactory keyFactory = KeyFactory.getInstance(KEY_FACTORY_ALGORITHM);
+            KeyFactory keyFactory = KeyFactory.getInstance(keyAlgorithm);
             return keyFactory.generatePublic(new X509EncodedKeySpec(decodedKey));
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
@@ -107,7 +365,7 @@ public class Security {
         try {
             sig = Signature.getInstance(SIGNATURE_ALGORITHM);
             sig.initVerify(publicKey);
-            sig.update(signedData.getBytes());
+            sig.update(signedData.getBytes(SIGNED_DATA_CHARSET));
             if (!sig.verify(Base64.decode(signature))) {
                 Log.e(TAG, "Signature verification failed.");
                 return false;
@@ -121,6 +379,8 @@ public class Security {
             Log.e(TAG, "Signature exception.");
         } catch (Base64DecoderException e) {
             Log.e(TAG, "Base64 decoding failed.");
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "UnsupportedEncodingException.");
         }
         return false;
     }
@@ -0,0 +1,167 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.developer4droid.trivialdrivesample.util;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A set of verifiers for rotated keys. A signature is accepted if any key in
+ * the set accepts it. Keys are tried starting with the one that matched last,
+ * so during a rotation the key currently in use is normally the only one
+ * checked. Each key is parsed once, through {@link Security#getVerifier(String, String)}.
+ *
+ * Adding and removing keys is thread-safe and does not block verification.
+ * A key that does not match is expected during a rotation, so a failure is
+ * logged only when no key in the set matches.
+ */
+public class SignatureKeySet implements SignatureVerifier {
+    private static final String TAG = "IABUtil/SignatureKeySet";
+
+    private volatile SignatureVerifier[] mVerifiers = new SignatureVerifier[0];
+    private volatile String mKeyId = "";
+
+    // Index of the verifier that accepted the last valid signature
+    private volatile int mLastMatch = 0;
+
+    public SignatureKeySet() { }
+
+    /**
+     * Adds a SHA1withRSA key to the set.
+     *
+     * @param base64PublicKey the base64-encoded public key
+     * @throws IllegalArgumentException if the key is invalid
+     */
+    public SignatureKeySet addKey(String base64PublicKey) {
+        return addKey(base64PublicKey, Security.ALGORITHM_SHA1_RSA);
+    }
+
+    /**
+     * Adds a key to the set. The newest key is tried first until a signature
+     * shows which key is in use.
+     *
+     * @param base64PublicKey the base64-encoded public key
+     * @param algorithm a signature algorithm registered with {@link Security#registerAlgorithm}
+     * @throws IllegalArgumentException if the key is invalid or the algorithm unknown
+     */
+    public synchronized SignatureKeySet addKey(String base64PublicKey, String algorithm) {
+        SignatureVerifier verifier = Security.getVerifier(base64PublicKey, algorithm);
+        SignatureVerifier[] old = mVerifiers;
+        SignatureVerifier[] verifiers = new SignatureVerifier[old.length + 1];
+        verifiers[0] = verifier;
+        System.arraycopy(old, 0, verifiers, 1, old.length);
+        publish(verifiers);
+        return this;
+    }
+
+    /**
+     * Removes a key from the set, for example once it has been retired.
+     *
+     * @return whether the key was in the set
+     */
+    public synchronized boolean removeKey(String base64PublicKey, String algorithm) {
+        SignatureVerifier[] old = mVerifiers;
+        for (int i = 0; i < old.length; ++i) {
+            if (old[i].getKeyId().equals(base64PublicKey) && old[i].getAlgorithm().equals(algorithm)) {
+                SignatureVerifier[] verifiers = new SignatureVerifier[old.length - 1];
+                System.arraycopy(old, 0, verifiers, 0, i);
+                System.arraycopy(old, i + 1, verifiers, i, old.length - i - 1);
+                publish(verifiers);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the number of keys in the set. */
+    public int size() { return mVerifiers.length; }
+
+    private void publish(SignatureVerifier[] verifiers) {
+        StringBuilder keyId = new StringBuilder();
+        for (SignatureVerifier v : verifiers) {
+            keyId.append(v.getAlgorithm()).append(' ').append(v.getKeyId()).append('\n');
+        }
+        mKeyId = keyId.toString();
+        mLastMatch = 0;
+        mVerifiers = verifiers;
+    }
+
+    public String getAlgorithm() { return "KeySet"; }
+
+    public String getKeyId() { return mKeyId; }
+
+    public boolean verify(String signedData, String signature) {
+        SignatureVerifier[] verifiers = mVerifiers;
+        int n = verifiers.length;
+        int start = mLastMatch;
+        for (int i = 0; i < n; ++i) {
+            int index = (start + i) % n;
+            SignatureVerifier v = verifiers[index];
+            if (v instanceof PublicKeyVerifier ? ((PublicKeyVerifier) v).verify(signedData, signature, false)
+                    : v.verify(signedData, signature)) {
+                if (index != start) mLastMatch = index;
+                return true;
+            }
+        }
+        Log.e(TAG, "Signature verification failed.");
+        return false;
+    }
+
+    public boolean verify(byte[] signedData, int dataOffset, int dataLength,
+                          byte[] signature, int sigOffset, int sigLength) {
+        SignatureVerifier[] verifiers = mVerifiers;
+        int n = verifiers.length;
+        int start = mLastMatch;
+        for (int i = 0; i < n; ++i) {
+            int index = (start + i) % n;
+            SignatureVerifier v = verifiers[index];
+            if (v instanceof PublicKeyVerifier
+                    ? ((PublicKeyVerifier) v).verify(signedData, dataOffset, dataLength,
+                            signature, sigOffset, sigLength, false)
+                    : v.verify(signedData, dataOffset, dataLength, signature, sigOffset, sigLength)) {
+                if (index != start) mLastMatch = index;
+                return true;
+            }
+        }
+        Log.e(TAG, "Signature verification failed.");
+        return false;
+    }
+
+    public boolean verify(ByteBuffer signedData, ByteBuffer signature) {
+        SignatureVerifier[] verifiers = mVerifiers;
+        int n = verifiers.length;
+        int start = mLastMatch;
+        int dataPosition = signedData.position();
+        int sigPosition = signature.position();
+        for (int i = 0; i < n; ++i) {
+            int index = (start + i) % n;
+            // every attempt consumes the buffers, so rewind them first
+            signedData.position(dataPosition);
+            signature.position(sigPosition);
+            SignatureVerifier v = verifiers[index];
+            if (v instanceof PublicKeyVerifier ? ((PublicKeyVerifier) v).verify(signedData, signature, false)
+                    : v.verify(signedData, signature)) {
+                if (index != start) mLastMatch = index;
+                return true;
+            }
+        }
+        Log.e(TAG, "Signature verification failed.");
+        signedData.position(signedData.limit());
+        signature.position(signature.limit());
+        return false;
+    }
+}
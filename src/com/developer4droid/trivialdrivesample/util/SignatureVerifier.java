@@ -0,0 +1,76 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.developer4droid.trivialdrivesample.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks purchase signatures. Implementations are created per algorithm by a
+ * {@link Factory} registered with {@link Security#registerAlgorithm}, and must be
+ * safe to use from several threads at once.
+ *
+ * @see PublicKeyVerifier
+ * @see SignatureKeySet
+ */
+public interface SignatureVerifier {
+    /**
+     * Creates verifiers for one signature algorithm.
+     */
+    public interface Factory {
+        /**
+         * Parses the given key and returns a verifier for it.
+         *
+         * @param base64PublicKey the base64-encoded public key
+         * @throws IllegalArgumentException if the key is invalid
+         */
+        public SignatureVerifier create(String base64PublicKey);
+    }
+
+    /** Returns the name of the signature algorithm, such as "SHA256withRSA". */
+    public String getAlgorithm();
+
+    /**
+     * Returns a string that identifies the key(s) this verifier checks against.
+     * Two verifiers with the same algorithm and key id must accept exactly the
+     * same signatures; {@link VerificationCache} relies on this.
+     */
+    public String getKeyId();
+
+    /**
+     * Verifies a signature over a string, signed in its UTF-8 encoding.
+     *
+     * @param signedData signed data from server
+     * @param signature server signature, in base64
+     * @return true if the data and signature match
+     */
+    public boolean verify(String signedData, String signature);
+
+    /**
+     * Verifies a raw signature over a range of UTF-8 encoded data.
+     *
+     * @return true if the data and signature match
+     */
+    public boolean verify(byte[] signedData, int dataOffset, int dataLength,
+                          byte[] signature, int sigOffset, int sigLength);
+
+    /**
+     * Verifies a raw signature over the remaining bytes of a buffer. Both
+     * buffers' positions are advanced to their limits.
+     *
+     * @return true if the data and signature match
+     */
+    public boolean verify(ByteBuffer signedData, ByteBuffer signature);
+}
@@ -16,20 +16,32 @@
 package com.developer4droid.trivialdrivesample.util;
 
 import org.json.JSONException;
-import org.json.JSONObject;
+
+import java.util.Currency;
 
 /**
  * Represents an in-app product's listing details.
  */
 public class SkuDetails {
+    // JSON names of the fields read by the constructor
+    private static final String[] FIELD_NAMES = {
+        "productId", "type", "price", "title", "description",
+        "price_amount_micros", "price_currency_code"
+    };
+
     String mItemType;
     String mSku;
     String mType;
     String mPrice;
     String mTitle;
     String mDescription;
+    long mPriceAmountMicros;
+    String mPriceCurrencyCode;
     String mJson;
 
+    /** Creates empty details whose fields are all set by the caller, as {@link InventoryCodec} does. */
+    SkuDetails() { }
+
     public SkuDetails(String jsonSkuDetails) throws JSONException {
         this(IabHelper.ITEM_TYPE_INAPP, jsonSkuDetails);
     }
@@ -37,12 +49,27 @@ public class SkuDetails {
     public SkuDetails(String itemType, String jsonSkuDetails) throws JSONException {
         mItemType = itemType;
         mJson = jsonSkuDetails;
-        JSONObject o = new JSONObject(mJson);
-        mSku = o.optString("productId");
-        mType = o.optString("type");
-        mPrice = o.optString("price");
-        mTitle = o.optString("title");
-        mDescription = o.optString("description");
+        mSku = mType = mPrice = mTitle = mDescription = mPriceCurrencyCode = "";
+        mPriceAmountMicros = -1;
+        JsonTokenizer reader = new JsonTokenizer(mJson);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName(FIELD_NAMES)) {
+                case 0: mSku = reader.nextString(); break;
+                case 1: mType = reader.nextString(); break;
+                case 2: mPrice = reader.nextString(); break;
+                case 3: mTitle = reader.nextString(); break;
+                case 4: mDescription = reader.nextString(); break;
+                case 5: mPriceAmountMicros = reader.nextLong(); break;
+                case 6: mPriceCurrencyCode = reader.nextString(); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+
+        // Older versions of the billing service only send the formatted price
+        if (mPriceCurrencyCode.length() == 0) mPriceCurrencyCode = findCurrencyCode(mPrice);
+        if (mPriceAmountMicros < 0) mPriceAmountMicros = parsePriceMicros(mPrice, mPriceCurrencyCode);
     }
 
     public String getSku() { return mSku; }
@@ -51,6 +78,149 @@ public class SkuDetails {
     public String getTitle() { return mTitle; }
     public String getDescription() { return mDescription; }
 
+    /**
+     * Returns the price in millionths of the currency unit, e.g. 1990000 for
+     * "$1.99", or -1 if the price is not known.
+     */
+    public long getPriceAmountMicros() { return mPriceAmountMicros; }
+
+    /** Returns the ISO 4217 currency code of the price, or "" if it is not known. */
+    public String getPriceCurrencyCode() { return mPriceCurrencyCode; }
+
+    /**
+     * Extracts the amount from a formatted price such as "$1.99", "1.234,50 EUR"
+     * or "CHF 1'000.00", for when the billing service does not send it as a
+     * number. Returns -1 rather than guessing when the format is ambiguous:
+     * "12.345" may be a price in a currency with three decimals, such as KWD,
+     * or twelve thousand in one with none, so a single '.' or ',' followed by
+     * three digits is only read when the currency tells which it is.
+     *
+     * @param price the formatted price
+     * @param currencyCode the ISO 4217 code of the price's currency, or "" if unknown
+     * @return the price in micros, or -1 if it cannot be read safely
+     */
+    static long parsePriceMicros(String price, String currencyCode) {
+        // Split the number into its groups of digits and the separators between them
+        int n = price.length();
+        int i = 0;
+        while (i < n && !isDigit(price.charAt(i))) ++i;
+        if (i == n) return -1;
+        int[] groupStart = new int[n];
+        int[] groupEnd = new int[n];
+        char[] separators = new char[n];
+        int groups = 0;
+        while (true) {
+            groupStart[groups] = i;
+            while (i < n && isDigit(price.charAt(i))) ++i;
+            groupEnd[groups] = i;
+            ++groups;
+            if (i + 1 < n && isSeparator(price.charAt(i)) && isDigit(price.charAt(i + 1))) {
+                separators[groups - 1] = price.charAt(i++);
+            }
+            else {
+                break;
+            }
+        }
+
+        // Decide whether the last group is a fraction
+        int last = groups - 1;
+        boolean fraction = false;
+        if (groups > 1 && isDecimalSeparator(separators[last - 1])) {
+            char separator = separators[last - 1];
+            int length = groupEnd[last] - groupStart[last];
+            boolean sameAsBefore = false;
+            for (int g = 0; g < last - 1; ++g) sameAsBefore |= separators[g] == separator;
+            if (sameAsBefore) {
+                fraction = false;
+            }
+            else if (last > 1) {
+                // "1.234,50", "1'000.00": the odd separator out is the decimal one
+                fraction = true;
+            }
+            else if (length <= 2) {
+                fraction = true;
+            }
+            else if (length == 3) {
+                int decimals = fractionDigits(currencyCode);
+                if (decimals < 0) return -1;
+                fraction = decimals == 3;
+            }
+            else {
+                return -1;
+            }
+            if (fraction && length > 6) return -1;
+        }
+
+        // Every group but the first must be a full group of thousands, all
+        // with the same separator
+        int integerGroups = fraction ? last : groups;
+        for (int g = 1; g < integerGroups; ++g) {
+            if (groupEnd[g] - groupStart[g] != 3 || separators[g - 1] != separators[0]) return -1;
+        }
+        if (integerGroups > 1 && groupEnd[0] - groupStart[0] > 3) return -1;
+
+        long units = 0;
+        int digits = 0;
+        for (int g = 0; g < integerGroups; ++g) {
+            for (int c = groupStart[g]; c < groupEnd[g]; ++c) {
+                units = units * 10 + (price.charAt(c) - '0');
+                ++digits;
+            }
+        }
+        if (digits > 12) return -1;  // would overflow as micros
+        long micros = units * 1000000;
+        if (fraction) {
+            long scale = 100000;
+            for (int c = groupStart[last]; c < groupEnd[last]; ++c) {
+                micros += (price.charAt(c) - '0') * scale;
+                scale /= 10;
+            }
+        }
+        return micros;
+    }
+
+    /** Returns the first ISO 4217 currency code written in a formatted price, or "". */
+    static String findCurrencyCode(String price) {
+        for (int i = 0, n = price.length(); i + 3 <= n; ++i) {
+            if ((i == 0 || !Character.isLetter(price.charAt(i - 1)))
+                    && isUpper(price.charAt(i)) && isUpper(price.charAt(i + 1)) && isUpper(price.charAt(i + 2))
+                    && (i + 3 == n || !Character.isLetter(price.charAt(i + 3)))) {
+                String code = price.substring(i, i + 3);
+                if (fractionDigits(code) >= 0) return code;
+            }
+        }
+        return "";
+    }
+
+    // Returns the number of decimals of the currency, or -1 if it is unknown
+    private static int fractionDigits(String currencyCode) {
+        if (currencyCode.length() != 3) return -1;
+        try {
+            return Currency.getInstance(currencyCode).getDefaultFractionDigits();
+        }
+        catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isUpper(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isDecimalSeparator(char c) {
+        return c == '.' || c == ',';
+    }
+
+    // Characters that separate groups of digits in formatted prices
+    private static boolean isSeparator(char c) {
+        return c == '.' || c == ',' || c == '\'' || c == '\u2019' || c == ' '
+                || c == '\u00a0' || c == '\u202f' || c == '\u2009';
+    }
+
     @Override
     public String toString() {
         return "SkuDetails:" + mJson;
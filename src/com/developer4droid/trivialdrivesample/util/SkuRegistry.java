@@ -0,0 +1,76 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.developer4droid.trivialdrivesample.util;
+
+import java.util.HashMap;
+
+/**
+ * Gives every known product ID a small, dense integer id, so that an
+ * {@link Inventory} can answer entitlement checks by array index instead of
+ * hashing strings. The {@link IabHelper} SKU_* products are registered as
+ * the SKU_ID_* constants; other products get an id the first time they are
+ * registered, for example when a purchase of them is found.
+ *
+ * Ids are never reused. Lookups do not lock: registration copies the tables
+ * and publishes the new ones.
+ */
+public final class SkuRegistry {
+    private static final Object sLock = new Object();
+
+    // Never modified once published; replaced as a whole on registration
+    private static volatile HashMap<String, Integer> sIds = new HashMap<String, Integer>();
+    private static volatile String[] sSkus = new String[0];
+
+    private SkuRegistry() { }
+
+    /** Returns the id of a product, registering it first if it is new. */
+    public static int register(String sku) {
+        Integer id = sIds.get(sku);
+        if (id != null) return id;
+        synchronized (sLock) {
+            id = sIds.get(sku);
+            if (id != null) return id;
+
+            String[] oldSkus = sSkus;
+            String[] skus = new String[oldSkus.length + 1];
+            System.arraycopy(oldSkus, 0, skus, 0, oldSkus.length);
+            skus[oldSkus.length] = sku;
+            HashMap<String, Integer> ids = new HashMap<String, Integer>(sIds);
+            ids.put(sku, oldSkus.length);
+
+            sSkus = skus;
+            sIds = ids;
+            return oldSkus.length;
+        }
+    }
+
+    /** Returns the id of a product, or -1 if it has not been registered. */
+    public static int idOf(String sku) {
+        Integer id = sIds.get(sku);
+        return id != null ? id : -1;
+    }
+
+    /** Returns the product ID with the given id, or null if there is none. */
+    public static String skuOf(int id) {
+        String[] skus = sSkus;
+        return id >= 0 && id < skus.length ? skus[id] : null;
+    }
+
+    /** Returns the number of registered products; ids run from 0 to size() - 1. */
+    public static int size() {
+        return sSkus.length;
+    }
+}
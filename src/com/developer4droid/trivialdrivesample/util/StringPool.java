@@ -0,0 +1,47 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.developer4droid.trivialdrivesample.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical instances of strings that recur across many purchases, such as
+ * item types, package names and product IDs. Unlike {@link String#intern},
+ * the pool belongs to its owner and is collected with it.
+ *
+ * The pool is bounded: once it is full, new strings are returned as they are.
+ * It is safe to use from several threads.
+ */
+final class StringPool {
+    private final ConcurrentHashMap<String, String> mPool = new ConcurrentHashMap<String, String>();
+    private final int mMaxSize;
+
+    StringPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /** Returns the canonical instance equal to <var>s</var>. */
+    String intern(String s) {
+        if (s == null) return null;
+        String canonical = mPool.get(s);
+        if (canonical != null) return canonical;
+        if (mPool.size() >= mMaxSize) return s;
+        canonical = mPool.putIfAbsent(s, s);
+        return canonical != null ? canonical : s;
+    }
+
+    int size() { return mPool.size(); }
+}
@@ -0,0 +1,171 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.developer4droid.trivialdrivesample.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, least-recently-used cache of successful signature verifications.
+ * getPurchases() returns the same (purchase data, signature) pairs on every
+ * inventory refresh, so remembering them lets repeat refreshes skip the RSA
+ * operation. Entries are keyed by a SHA-256 digest of the public key, the
+ * algorithm, the signed data and the signature, so a cached result can only
+ * be reused for exactly the same input. Failures are not cached: they are
+ * verified again every time, so a transient failure does not stick.
+ *
+ * The cache used by {@link Security} is available through
+ * {@link Security#getVerificationCache}. All methods are thread-safe.
+ */
+public class VerificationCache {
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    // Values are always TRUE; only successful verifications are kept
+    private final LinkedHashMap<Key, Boolean> mEntries;
+    private int mMaxSize;
+    private long mHits;
+    private long mMisses;
+
+    private static final ThreadLocal<MessageDigest> sDigests = new ThreadLocal<MessageDigest>();
+
+    /**
+     * Creates a cache holding at most maxSize results.
+     *
+     * @param maxSize the maximum number of entries; 0 disables caching
+     */
+    public VerificationCache(int maxSize) {
+        if (maxSize < 0) throw new IllegalArgumentException("maxSize < 0: " + maxSize);
+        mMaxSize = maxSize;
+        mEntries = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+                return size() > mMaxSize;
+            }
+        };
+    }
+
+    /** Returns the maximum number of entries. */
+    public synchronized int getMaxSize() { return mMaxSize; }
+
+    /**
+     * Changes the maximum number of entries, evicting the least recently used
+     * ones if the cache is now over the limit.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize < 0) throw new IllegalArgumentException("maxSize < 0: " + maxSize);
+        mMaxSize = maxSize;
+        Iterator<Key> it = mEntries.keySet().iterator();
+        while (mEntries.size() > mMaxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /** Returns the number of lookups that found a cached result. */
+    public synchronized long getHitCount() { return mHits; }
+
+    /** Returns the number of lookups that had to run a real verification. */
+    public synchronized long getMissCount() { return mMisses; }
+
+    /** Returns the number of cached successful verifications. */
+    public synchronized int size() { return mEntries.size(); }
+
+    /** Drops all cached results. The hit and miss counters are kept. */
+    public synchronized void clear() { mEntries.clear(); }
+
+    /**
+     * Verifies the data with the given verifier, or returns true without doing
+     * so if the same data and signature were successfully verified with the
+     * same key before.
+     */
+    boolean verify(SignatureVerifier verifier, String signedData, String signature) {
+        if (getMaxSize() == 0) return verifier.verify(signedData, signature);
+
+        Key key = new Key(digest(verifier, signedData, signature));
+        synchronized (this) {
+            if (mEntries.get(key) != null) {
+                mHits++;
+                return true;
+            }
+            mMisses++;
+        }
+
+        boolean verified = verifier.verify(signedData, signature);
+        if (verified) {
+            synchronized (this) {
+                mEntries.put(key, Boolean.TRUE);
+            }
+        }
+        return verified;
+    }
+
+    static byte[] digest(SignatureVerifier verifier, String signedData, String signature) {
+        MessageDigest md = sDigests.get();
+        if (md == null) {
+            try {
+                md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            sDigests.set(md);
+        }
+        update(md, verifier.getKeyId());
+        update(md, verifier.getAlgorithm());
+        update(md, signedData);
+        update(md, signature);
+        return md.digest();
+    }
+
+    // Length-prefixed, so that field boundaries can't be shifted to forge a collision
+    private static void update(MessageDigest md, String s) {
+        byte[] bytes;
+        try {
+            bytes = s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        int len = bytes.length;
+        md.update((byte) (len >>> 24));
+        md.update((byte) (len >>> 16));
+        md.update((byte) (len >>> 8));
+        md.update((byte) len);
+        md.update(bytes);
+    }
+
+    private static final class Key {
+        final byte[] mDigest;
+        final int mHash;
+
+        Key(byte[] digest) {
+            mDigest = digest;
+            mHash = ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16)
+                    | ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+        }
+
+        @Override
+        public int hashCode() { return mHash; }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(mDigest, ((Key) o).mDigest);
+        }
+    }
+}